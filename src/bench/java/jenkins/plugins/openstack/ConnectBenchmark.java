@@ -0,0 +1,50 @@
+package jenkins.plugins.openstack;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openstack.nova.NovaClient;
+
+/* The cost of getting a usable NovaClient. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConnectBenchmark {
+
+	@Param({"0", "20"})
+	public long latency;
+
+	private FakeOpenStack stack;
+	private OpenStackCloud cloud;
+
+	@Setup
+	public void setUp() throws Exception {
+		stack = new FakeOpenStack().withLatency(latency);
+		cloud = Fixtures.cloud("bench", stack, null, Collections.<SlaveTemplate>emptyList());
+	}
+
+	@TearDown
+	public void tearDown() {
+		stack.stop();
+	}
+
+	@Benchmark
+	public NovaClient sharedSession() {
+		return cloud.connect();
+	}
+
+	@Benchmark
+	public NovaClient freshAuthentication() {
+		return OpenStackCloud.connect(cloud.authUrl, cloud.authUsername, cloud.authPassword,
+									  cloud.authTenant, cloud.regionName);
+	}
+}
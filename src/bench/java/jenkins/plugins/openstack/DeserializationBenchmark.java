@@ -0,0 +1,40 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Hudson;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openstack.nova.api.ServersCore;
+import org.openstack.nova.model.Server;
+
+/*
+ * Loading a persisted slave, as Jenkins does for every node at startup.
+ * This must not cost a round trip to the cloud.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeserializationBenchmark {
+
+	private String xml;
+
+	@Setup
+	public void setUp(JenkinsState state) throws Exception {
+		String serverId = state.stack.getServers().keySet().iterator().next();
+		Server server = state.cloud.execute(ServersCore.showServer(serverId));
+		OpenStackSlave slave = new OpenStackSlave(state.cloud.getTemplates().get(0), state.cloud, server);
+		xml = Hudson.XSTREAM.toXML(slave);
+	}
+
+	@Benchmark
+	public Object readSlave() {
+		return Hudson.XSTREAM.fromXML(xml);
+	}
+}
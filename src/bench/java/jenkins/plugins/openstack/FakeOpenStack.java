@@ -0,0 +1,316 @@
+package jenkins.plugins.openstack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * An in-process stand-in for Keystone and Nova, serving just enough of the
+ * v2 APIs for the plugin. Latency, catalog size and the number of existing
+ * servers are configurable, and every request is counted.
+ */
+public class FakeOpenStack implements HttpHandler {
+
+	public static final String TENANT = "tenant";
+
+	/* Nova's default osapi_max_limit. */
+	private static final int PAGE_SIZE = 1000;
+
+	private final HttpServer server;
+
+	private volatile long latency;
+	private volatile int flavors;
+	private volatile int images;
+
+	private final ConcurrentMap<String, JSONObject> servers = new ConcurrentHashMap<String, JSONObject>();
+	private final ConcurrentMap<String, AtomicLong> requests = new ConcurrentHashMap<String, AtomicLong>();
+
+	public FakeOpenStack() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public String getAuthUrl() {
+		return getBaseUrl() + "/v2.0/";
+	}
+
+	private String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public FakeOpenStack withLatency(long millis) {
+		this.latency = millis;
+		return this;
+	}
+
+	public FakeOpenStack withCatalog(int flavors, int images) {
+		this.flavors = flavors;
+		this.images = images;
+		return this;
+	}
+
+	public FakeOpenStack withServers(int count, String cloudId, String templateId) {
+		for( int i = 0; i < count; i++ )
+			addServer("existing-" + i, "ACTIVE", cloudId, templateId);
+		return this;
+	}
+
+	public JSONObject addServer(String name, String status, String cloudId, String templateId) {
+		String id = UUID.randomUUID().toString();
+		JSONObject metadata = new JSONObject();
+		if( cloudId != null ) {
+			metadata.put(OpenStackCloud.METADATA_CLOUD, cloudId);
+			metadata.put(OpenStackCloud.METADATA_TEMPLATE, templateId);
+			metadata.put(OpenStackCloud.METADATA_MASTER, OpenStackCloud.getMasterId());
+		}
+		JSONObject address = new JSONObject();
+		address.put("version", 4);
+		address.put("addr", "127.0.0.1");
+		JSONObject addresses = new JSONObject();
+		addresses.put("private", new JSONArray().element(address));
+
+		JSONObject s = new JSONObject();
+		s.put("id", id);
+		s.put("name", name);
+		s.put("status", status);
+		s.put("metadata", metadata);
+		s.put("addresses", addresses);
+		s.put("created", "2012-01-01T00:00:00Z");
+		s.put("updated", now());
+		servers.put(id, s);
+		return s;
+	}
+
+	public Map<String, JSONObject> getServers() {
+		return servers;
+	}
+
+	public long getRequests(String kind) {
+		AtomicLong n = requests.get(kind);
+		return n == null ? 0 : n.get();
+	}
+
+	public long getTotalRequests() {
+		long total = 0;
+		for( AtomicLong n : requests.values() )
+			total += n.get();
+		return total;
+	}
+
+	private void count(String kind) {
+		AtomicLong n = requests.get(kind);
+		if( n == null ) {
+			AtomicLong fresh = new AtomicLong();
+			n = requests.putIfAbsent(kind, fresh);
+			if( n == null )
+				n = fresh;
+		}
+		n.incrementAndGet();
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if( latency > 0 )
+				Thread.sleep(latency);
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getPath();
+			String body = read(exchange.getRequestBody());
+			count(method + " " + path.replaceAll("/[0-9a-f-]{36}", "/{id}"));
+			route(exchange, method, path, body);
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/* Handles one request; the simulator overrides this to inject behaviour. */
+	protected void route(HttpExchange exchange, String method, String path, String body) throws IOException {
+		String nova = "/v2/" + TENANT;
+		if( method.equals("POST") && path.equals("/v2.0/tokens") ) {
+			respond(exchange, 200, access());
+		} else if( path.startsWith(nova + "/flavors") ) {
+			respond(exchange, 200, catalog("flavors", "flavor", flavors, path.substring(nova.length())));
+		} else if( path.startsWith(nova + "/images") ) {
+			respond(exchange, 200, catalog("images", "image", images, path.substring(nova.length())));
+		} else if( method.equals("GET") && path.startsWith(nova + "/servers/detail") ) {
+			String reservation = query(exchange, "reservation_id");
+			String marker = query(exchange, "marker");
+			JSONArray list = new JSONArray();
+			boolean more = false;
+			/* Paged in order of ID, where Nova uses its own order. */
+			for( JSONObject s : new TreeMap<String, JSONObject>(servers).values() ) {
+				if( marker != null && s.getString("id").compareTo(marker) <= 0 )
+					continue;
+				if( reservation != null && !reservation.equals(s.optString("reservation_id")) )
+					continue;
+				if( list.size() == PAGE_SIZE ) {
+					more = true;
+					break;
+				}
+				list.add(s);
+			}
+			JSONObject page = new JSONObject().element("servers", list);
+			if( more ) {
+				JSONObject next = new JSONObject();
+				next.put("rel", "next");
+				next.put("href", getBaseUrl() + nova + "/servers/detail?marker=" +
+						list.getJSONObject(list.size() - 1).getString("id"));
+				page.put("servers_links", new JSONArray().element(next));
+			}
+			respond(exchange, 200, page);
+		} else if( method.equals("POST") && path.equals(nova + "/servers") ) {
+			createServer(exchange, JSONObject.fromObject(body).getJSONObject("server"));
+		} else if( path.startsWith(nova + "/servers/") ) {
+			String id = path.substring((nova + "/servers/").length());
+			JSONObject s = servers.get(id);
+			if( s == null )
+				respond(exchange, 404, new JSONObject());
+			else if( method.equals("DELETE") ) {
+				servers.remove(id);
+				respond(exchange, 204, null);
+			} else
+				respond(exchange, 200, new JSONObject().element("server", s));
+		} else {
+			respond(exchange, 404, new JSONObject());
+		}
+	}
+
+	protected void createServer(HttpExchange exchange, JSONObject request) throws IOException {
+		int count = request.optInt("max_count", 1);
+		JSONObject metadata = request.optJSONObject("metadata");
+		String cloudId = metadata == null ? null : metadata.optString(OpenStackCloud.METADATA_CLOUD, null);
+		String templateId = metadata == null ? null : metadata.optString(OpenStackCloud.METADATA_TEMPLATE, null);
+		String reservation = "r-" + UUID.randomUUID().toString().substring(0, 8);
+		JSONObject first = null;
+		for( int i = 0; i < count; i++ ) {
+			JSONObject s = addServer(request.getString("name"), "ACTIVE", cloudId, templateId);
+			if( metadata != null )
+				s.getJSONObject("metadata").putAll(metadata);
+			s.put("reservation_id", reservation);
+			if( first == null )
+				first = s;
+		}
+		if( request.optBoolean("return_reservation_id") )
+			respond(exchange, 202, new JSONObject().element("reservation_id", reservation));
+		else
+			respond(exchange, 202, new JSONObject().element("server", first));
+	}
+
+	/* The current time as Nova formats its timestamps. */
+	protected static String now() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date());
+	}
+
+	/* The value of a query parameter, or null. */
+	protected static String query(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if( query == null )
+			return null;
+		for( String pair : query.split("&") ) {
+			int eq = pair.indexOf('=');
+			if( eq > 0 && pair.substring(0, eq).equals(name) ) {
+				try {
+					return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				} catch( UnsupportedEncodingException e ) {
+					throw new AssertionError(e);
+				}
+			}
+		}
+		return null;
+	}
+
+	private JSONObject access() {
+		JSONObject endpoint = new JSONObject();
+		endpoint.put("region", "RegionOne");
+		endpoint.put("publicURL", getBaseUrl() + "/v2/" + TENANT);
+		endpoint.put("internalURL", getBaseUrl() + "/v2/" + TENANT);
+		endpoint.put("adminURL", getBaseUrl() + "/v2/" + TENANT);
+		JSONObject compute = new JSONObject();
+		compute.put("type", "compute");
+		compute.put("name", "nova");
+		compute.put("endpoints", new JSONArray().element(endpoint));
+
+		JSONObject token = new JSONObject();
+		token.put("id", UUID.randomUUID().toString());
+		token.put("expires", "2099-01-01T00:00:00Z");
+
+		JSONObject access = new JSONObject();
+		access.put("token", token);
+		access.put("serviceCatalog", new JSONArray().element(compute));
+		return new JSONObject().element("access", access);
+	}
+
+	private JSONObject catalog(String plural, String singular, int size, String path) {
+		String[] parts = path.split("/");
+		if( parts.length > 2 && !parts[2].equals("detail") ) {
+			JSONObject item = item(singular, Integer.parseInt(parts[2]));
+			return new JSONObject().element(singular, item);
+		}
+		JSONArray list = new JSONArray();
+		for( int i = 0; i < size; i++ )
+			list.add(item(singular, i));
+		return new JSONObject().element(plural, list);
+	}
+
+	private static JSONObject item(String kind, int i) {
+		JSONObject item = new JSONObject();
+		item.put("id", String.valueOf(i));
+		item.put("name", kind + "-" + i);
+		item.put("vcpus", 1);
+		item.put("ram", 1024);
+		item.put("disk", 10);
+		item.put("status", "ACTIVE");
+		return item;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		byte[] buffer = new byte[8192];
+		int n;
+		while( (n = in.read(buffer)) > 0 )
+			sb.append(new String(buffer, 0, n, "UTF-8"));
+		return sb.toString();
+	}
+
+	protected static void respond(HttpExchange exchange, int status, JSONObject json) throws IOException {
+		if( json == null ) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		byte[] bytes = json.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
@@ -0,0 +1,60 @@
+package jenkins.plugins.openstack;
+
+import java.util.List;
+
+/*
+ * Builds clouds and templates pointing at a FakeOpenStack, so that the
+ * benchmarks and the simulator do not each track the constructor arguments.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	static SlaveTemplate template(String id, String labels) {
+		return template(id, labels, false, null);
+	}
+
+	static SlaveTemplate template(String id, String labels, boolean jnlp, String idleMinutes) {
+		return new SlaveTemplate(id,
+								 "",		/* description */
+								 "image-1",
+								 "flavor-1",
+								 "",		/* key name */
+								 "",		/* availability zone */
+								 "",		/* security groups */
+								 true,		/* unix */
+								 "slave",
+								 "root",
+								 null,		/* password */
+								 null,		/* private key */
+								 labels,
+								 "1",		/* executors */
+								 null,		/* instance cap */
+								 null,		/* standby instances */
+								 idleMinutes,
+								 idleMinutes,	/* idle minutes without demand */
+								 null,		/* billing minutes */
+								 null,		/* weight */
+								 null,		/* priority */
+								 false,		/* stop on terminate */
+								 false,		/* rebuild on terminate */
+								 jnlp,
+								 null,		/* console ready pattern */
+								 null);		/* console failure pattern */
+	}
+
+	static OpenStackCloud cloud(String id, FakeOpenStack stack, String instanceCap, List<SlaveTemplate> templates) {
+		return new OpenStackCloud(id,
+								  stack.getAuthUrl(),
+								  "admin",
+								  "admin",
+								  FakeOpenStack.TENANT,
+								  "RegionOne",
+								  instanceCap,
+								  null,		/* cache TTL */
+								  null,		/* API limits */
+								  null,		/* concurrent boots */
+								  templates);
+	}
+}
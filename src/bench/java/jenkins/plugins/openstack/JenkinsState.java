@@ -0,0 +1,53 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Hudson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.runner.Description;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * A Jenkins instance with one cloud of many templates pointing at a
+ * FakeOpenStack, for the benchmarks that need Jenkins itself (labels,
+ * nodes and their serialized form).
+ */
+@State(Scope.Benchmark)
+public class JenkinsState {
+
+	@Param({"10", "100"})
+	public int templates;
+
+	@Param({"1000"})
+	public int servers;
+
+	JenkinsRule jenkins;
+	FakeOpenStack stack;
+	OpenStackCloud cloud;
+
+	@Setup
+	public void setUp() throws Throwable {
+		jenkins = new JenkinsRule();
+		jenkins.apply(null, Description.createTestDescription(JenkinsState.class, "bench"));
+		jenkins.before();
+
+		stack = new FakeOpenStack().withCatalog(10, 10).withServers(servers, "bench", "t0");
+		List<SlaveTemplate> list = new ArrayList<SlaveTemplate>();
+		for( int i = 0; i < templates; i++ )
+			list.add(Fixtures.template("t" + i, "os-" + (i % 10) + " size-" + i));
+		cloud = Fixtures.cloud("bench", stack, null, list);
+		Hudson.getInstance().clouds.add(cloud);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		stack.stop();
+		jenkins.after();
+	}
+}
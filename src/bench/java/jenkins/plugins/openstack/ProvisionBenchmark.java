@@ -0,0 +1,81 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * A burst of demand for one label, from provision() planning the nodes to
+ * every boot having its server up, which is the part of provisioning that
+ * talks to Nova before slaves are launched. The launches themselves are
+ * left out: there is no agent to connect to. Every invocation starts from
+ * the same state, as the slaves it made are terminated after it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProvisionBenchmark {
+
+	/* Only t0 has this label. */
+	private static final Label LABEL = Label.get("size-0");
+
+	private static final long DEADLINE = TimeUnit.MINUTES.toMillis(1);
+
+	@Param({"1", "20", "100"})
+	public int burst;
+
+	@Benchmark
+	public Collection<PlannedNode> burst(JenkinsState state) throws Exception {
+		Collection<PlannedNode> planned = state.cloud.provision(LABEL, burst);
+		ProvisioningScheduler scheduler = state.cloud.getScheduler();
+		long deadline = System.currentTimeMillis() + DEADLINE;
+		while( scheduler.getQueued() + scheduler.getInFlight() > 0 ) {
+			if( System.currentTimeMillis() > deadline )
+				throw new IllegalStateException("Boots still in flight after " + DEADLINE + "ms");
+			Thread.sleep(1);
+		}
+		return planned;
+	}
+
+	@TearDown(Level.Invocation)
+	public void release(JenkinsState state) throws Exception {
+		/* Slaves are registered a moment after their server is up. */
+		long deadline = System.currentTimeMillis() + DEADLINE;
+		List<OpenStackSlave> slaves = slaves();
+		while( slaves.size() < burst && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(1);
+			slaves = slaves();
+		}
+		for( OpenStackSlave slave : slaves )
+			slave.terminate();
+
+		/* Deleting the servers gives their room back to the accounting. */
+		deadline = System.currentTimeMillis() + DEADLINE;
+		while( state.cloud.getTerminationQueue().getDepth() > 0 && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+	}
+
+	private static List<OpenStackSlave> slaves() {
+		List<OpenStackSlave> slaves = new ArrayList<OpenStackSlave>();
+		for( Node node : Hudson.getInstance().getNodes() )
+			if( node instanceof OpenStackSlave )
+				slaves.add((OpenStackSlave) node);
+		return slaves;
+	}
+}
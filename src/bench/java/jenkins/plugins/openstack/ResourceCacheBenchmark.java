@@ -0,0 +1,53 @@
+package jenkins.plugins.openstack;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/* Resolving image names against catalogs of various sizes. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResourceCacheBenchmark {
+
+	@Param({"100", "1000", "5000"})
+	public int catalogSize;
+
+	private FakeOpenStack stack;
+	private OpenStackSession session;
+	private ResourceCache cache;
+	private String name;
+
+	@Setup
+	public void setUp() throws Exception {
+		stack = new FakeOpenStack().withCatalog(catalogSize, catalogSize);
+		session = new OpenStackSession(stack.getAuthUrl(), "admin", "admin", FakeOpenStack.TENANT, "RegionOne");
+		cache = new ResourceCache(session, ResourceCache.DEFAULT_TTL_MINUTES);
+		name = "image-" + (catalogSize - 1);
+		cache.getImageRef(name);
+	}
+
+	@TearDown
+	public void tearDown() {
+		stack.stop();
+	}
+
+	@Benchmark
+	public String cachedByName() {
+		return cache.getImageRef(name);
+	}
+
+	/* What every boot used to pay: a full listing and a linear scan. */
+	@Benchmark
+	public String uncachedByName() {
+		return new ResourceCache(session, ResourceCache.DEFAULT_TTL_MINUTES).getImageRef(name);
+	}
+}
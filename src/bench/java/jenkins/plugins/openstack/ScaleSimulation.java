@@ -0,0 +1,212 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+import hudson.tasks.Mailer;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+/*
+ * Queues a burst of builds for one label against a SimulatedOpenStack and
+ * reports how the plugin copes once NodeProvisioner and the retention
+ * strategy have had their way: time from queue to executor, peak thread
+ * count, API calls per job, nodes not retired and servers left behind.
+ * The template is JNLP and the simulation plays the part of the servers:
+ * once a node is registered its agent is started as a local slave.jar, so
+ * every node online is a JVM on this machine; size sim.quota to suit.
+ * Run with: mvn -Psimulation verify
+ *
+ * The shape of the load is set with system properties: sim.jobs,
+ * sim.buildTime, sim.bootDelay and sim.latency (ms), sim.errorRate and
+ * sim.quota.
+ */
+public class ScaleSimulation {
+
+	private static final Logger LOGGER = Logger.getLogger(ScaleSimulation.class.getName());
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final int jobs = Integer.getInteger("sim.jobs", 500);
+	private final long buildTime = Long.getLong("sim.buildTime", 30000L);
+	private final long bootDelay = Long.getLong("sim.bootDelay", 30000L);
+	private final long latency = Long.getLong("sim.latency", 20L);
+	private final double errorRate = Double.parseDouble(System.getProperty("sim.errorRate", "0.05"));
+	private final int quota = Integer.getInteger("sim.quota", 400);
+
+	private SimulatedOpenStack stack;
+	private OpenStackCloud cloud;
+
+	/* Starts the agents of new nodes, as the servers' user-data would. */
+	private final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor();
+	private final ExecutorService agents = Executors.newCachedThreadPool();
+	private final Set<String> started = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	@Before
+	public void setUp() throws Exception {
+		/* JNLP user-data needs the master URL. */
+		Mailer.descriptor().setHudsonUrl(j.getURL().toString());
+
+		stack = new SimulatedOpenStack()
+					.withBootDelay(bootDelay)
+					.withErrorRate(errorRate)
+					.withQuota(quota);
+		stack.withLatency(latency).withCatalog(20, 200);
+		cloud = Fixtures.cloud("sim", stack, null, Collections.singletonList(
+					Fixtures.template("sim", "sim", true, "1")));
+		Hudson.getInstance().clouds.add(cloud);
+
+		final ComputerLauncher launcher = j.createComputerLauncher(null);
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for( Computer c : Hudson.getInstance().getComputers() ) {
+					if( c instanceof OpenStackComputer && c.isOffline() && started.add(c.getName()) )
+						startAgent(launcher, (SlaveComputer) c);
+				}
+			}
+		}, 500, 500, TimeUnit.MILLISECONDS);
+	}
+
+	private void startAgent(final ComputerLauncher launcher, final SlaveComputer c) {
+		agents.submit(new Runnable() {
+			public void run() {
+				try {
+					launcher.launch(c, StreamTaskListener.fromStderr());
+				} catch( Exception e ) {
+					LOGGER.log(Level.WARNING, "Failed to start the agent of " + c.getName(), e);
+				}
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		watcher.shutdownNow();
+		agents.shutdownNow();
+		stack.stop();
+	}
+
+	@Test
+	public void burst() throws Exception {
+		List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+		for( int i = 0; i < jobs; i++ ) {
+			FreeStyleProject p = j.createFreeStyleProject("sim-" + i);
+			p.setAssignedLabel(Label.get("sim"));
+			p.getBuildersList().add(new SleepBuilder(buildTime));
+			projects.add(p);
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		long apiBefore = stack.getTotalRequests();
+
+		long queued = System.currentTimeMillis();
+		List<Future<FreeStyleBuild>> builds = new ArrayList<Future<FreeStyleBuild>>();
+		for( FreeStyleProject p : projects )
+			builds.add(p.scheduleBuild2(0));
+
+		List<Long> waits = new ArrayList<Long>();
+		int failed = 0;
+		for( Future<FreeStyleBuild> f : builds ) {
+			try {
+				FreeStyleBuild build = f.get(1, TimeUnit.HOURS);
+				waits.add(build.getTimeInMillis() - queued);
+			} catch( Exception e ) {
+				failed++;
+			}
+		}
+		Collections.sort(waits);
+		int peakThreads = threads.getPeakThreadCount();
+		long apiCalls = stack.getTotalRequests() - apiBefore;
+
+		/* With the queue empty, the retention strategy should retire every node. */
+		long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10);
+		while( !openStackNodes().isEmpty() && System.currentTimeMillis() < deadline )
+			Thread.sleep(1000);
+		List<OpenStackSlave> remaining = openStackNodes();
+		for( OpenStackSlave slave : remaining )
+			slave.terminate();
+
+		deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+		while( cloud.getTerminationQueue().getDepth() > 0 && System.currentTimeMillis() < deadline )
+			Thread.sleep(500);
+		int leaked = 0;
+		for( JSONObject server : stack.getServers().values() )
+			if( "sim".equals(server.getJSONObject("metadata").optString(OpenStackCloud.METADATA_CLOUD)) )
+				leaked++;
+
+		StringWriter out = new StringWriter();
+		PrintWriter report = new PrintWriter(out);
+		report.println("jobs                       " + jobs);
+		report.println("completed builds           " + waits.size());
+		report.println("failed builds              " + failed);
+		report.println("queue to executor p50 (ms) " + percentile(waits, 50));
+		report.println("queue to executor p90 (ms) " + percentile(waits, 90));
+		report.println("queue to executor p99 (ms) " + percentile(waits, 99));
+		report.println("queue to executor max (ms) " + percentile(waits, 100));
+		report.println("peak threads               " + peakThreads);
+		report.println("API calls                  " + apiCalls);
+		report.println("API calls per job          " + String.format("%.2f", (double) apiCalls / jobs));
+		report.println("Keystone auths             " + cloud.getSession().getAuthCalls());
+		report.println("nodes not retired          " + remaining.size());
+		report.println("leaked servers             " + leaked);
+		report.flush();
+
+		File file = new File("target/simulation-report.txt");
+		file.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(out.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static List<OpenStackSlave> openStackNodes() {
+		List<OpenStackSlave> slaves = new ArrayList<OpenStackSlave>();
+		for( Node node : Hudson.getInstance().getNodes() )
+			if( node instanceof OpenStackSlave )
+				slaves.add((OpenStackSlave) node);
+		return slaves;
+	}
+
+	private static long percentile(List<Long> sorted, int percentile) {
+		if( sorted.isEmpty() )
+			return 0;
+		int index = (int) Math.ceil(sorted.size() * percentile / 100.0) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+}
@@ -0,0 +1,89 @@
+package jenkins.plugins.openstack;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/*
+ * A FakeOpenStack whose servers behave like a busy cloud: they spend a
+ * while in BUILD, some end up in ERROR, and creates beyond the instance
+ * quota are refused.
+ */
+public class SimulatedOpenStack extends FakeOpenStack {
+
+	private final ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor();
+	private final Random random = new Random(42);
+
+	private volatile long bootDelay;
+	private volatile double errorRate;
+	private volatile int quota = Integer.MAX_VALUE;
+
+	public SimulatedOpenStack() throws IOException {
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		clock.shutdownNow();
+	}
+
+	public SimulatedOpenStack withBootDelay(long millis) {
+		this.bootDelay = millis;
+		return this;
+	}
+
+	public SimulatedOpenStack withErrorRate(double rate) {
+		this.errorRate = rate;
+		return this;
+	}
+
+	public SimulatedOpenStack withQuota(int instances) {
+		this.quota = instances;
+		return this;
+	}
+
+	@Override
+	protected void createServer(HttpExchange exchange, JSONObject request) throws IOException {
+		int count = request.optInt("max_count", 1);
+		int min = request.optInt("min_count", 1);
+		int room = quota - getServers().size();
+		if( room < min ) {
+			JSONObject overLimit = new JSONObject();
+			overLimit.put("code", 413);
+			overLimit.put("message", "Quota exceeded for instances");
+			respond(exchange, 413, new JSONObject().element("overLimit", overLimit));
+			return;
+		}
+		request.put("max_count", Math.min(count, room));
+		super.createServer(exchange, request);
+	}
+
+	@Override
+	public JSONObject addServer(String name, String status, String cloudId, String templateId) {
+		final JSONObject server = super.addServer(name, status, cloudId, templateId);
+		server.getJSONObject("addresses").getJSONArray("private").getJSONObject(0).put("addr", "127.0.0.1");
+		if( name.startsWith("existing-") )
+			return server;
+
+		server.put("status", "BUILD");
+		final boolean fails;
+		long delay;
+		synchronized( random ) {
+			fails = random.nextDouble() < errorRate;
+			delay = (long) (bootDelay * (0.5 + random.nextDouble()));
+		}
+		clock.schedule(new Runnable() {
+			public void run() {
+				server.put("status", fails ? "ERROR" : "ACTIVE");
+				server.put("updated", now());
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return server;
+	}
+}
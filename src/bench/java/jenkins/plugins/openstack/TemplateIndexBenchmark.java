@@ -0,0 +1,46 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Label;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* Finding the templates for a label, as the provisioner does every tick. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TemplateIndexBenchmark {
+
+	private Label label;
+
+	@Setup
+	public void setUp(JenkinsState state) {
+		label = Label.parseExpression("os-3&&size-" + (state.templates - 7));
+	}
+
+	@Benchmark
+	public SlaveTemplate getTemplate(JenkinsState state) {
+		return state.cloud.getTemplate(label);
+	}
+
+	@Benchmark
+	public boolean canProvision(JenkinsState state) {
+		return state.cloud.canProvision(label);
+	}
+
+	/* The scan getTemplate(Label) used to do on every call. */
+	@Benchmark
+	public SlaveTemplate linearScan(JenkinsState state) {
+		for( SlaveTemplate t : state.cloud.getTemplates() )
+			if( t.matches(label) )
+				return t;
+		return null;
+	}
+}
@@ -0,0 +1,117 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openstack.nova.model.Server.Addresses;
+import org.openstack.nova.model.Server.Addresses.Address;
+
+/*
+ * Finds an address of a server that accepts connections, by probing all of
+ * them at once with plain TCP connects rather than trying a full launch
+ * against each in turn. Addresses on the network that answered last time
+ * get a head start.
+ */
+public final class AddressProber {
+
+	private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(2);
+	private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+	private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(15);
+	private static final long HEAD_START = TimeUnit.SECONDS.toMillis(2);
+
+	public static final class Reachable {
+		public final String network;
+		public final String address;
+
+		Reachable(String network, String address) {
+			this.network = network;
+			this.address = address;
+		}
+	}
+
+	private AddressProber() {
+	}
+
+	/*
+	 * Returns the first address to accept a connection on the port, or null
+	 * if none did before the timeout.
+	 */
+	public static Reachable probe(Addresses addresses,
+								  final int port,
+								  String preferredNetwork,
+								  long timeout) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		CompletionService<Reachable> completion =
+			new ExecutorCompletionService<Reachable>(Computer.threadPoolForRemoting);
+		List<Future<Reachable>> probes = new ArrayList<Future<Reachable>>();
+
+		try {
+			for( Map.Entry<String, List<Address>> network : addresses.getAddresses().entrySet() ) {
+				final String name = network.getKey();
+				final long delay = preferredNetwork == null || preferredNetwork.equals(name) ? 0 : HEAD_START;
+				for( Address addr : network.getValue() ) {
+					final String address = addr.getAddr();
+					probes.add(completion.submit(new Callable<Reachable>() {
+						public Reachable call() throws InterruptedException {
+							Thread.sleep(delay);
+							return poll(name, address, port, deadline);
+						}
+					}));
+				}
+			}
+
+			for( int i = 0; i < probes.size(); i++ ) {
+				long remaining = deadline - System.currentTimeMillis();
+				Future<Reachable> done = completion.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+				if( done == null )
+					return null;
+				try {
+					Reachable reachable = done.get();
+					if( reachable != null )
+						return reachable;
+				} catch( ExecutionException e ) {
+					/* This address gave up; wait for the others. */
+				}
+			}
+			return null;
+		} finally {
+			for( Future<Reachable> probe : probes )
+				probe.cancel(true);
+		}
+	}
+
+	private static Reachable poll(String network, String address, int port, long deadline)
+			throws InterruptedException {
+		long backoff = INITIAL_BACKOFF;
+		while( System.currentTimeMillis() < deadline ) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+				return new Reachable(network, address);
+			} catch( IOException e ) {
+				/* Not up yet. */
+			} finally {
+				try {
+					socket.close();
+				} catch( IOException e ) {
+					/* Ignore. */
+				}
+			}
+			Thread.sleep(Math.min(backoff, Math.max(deadline - System.currentTimeMillis(), 0)));
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+		return null;
+	}
+}
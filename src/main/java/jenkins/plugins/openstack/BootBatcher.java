@@ -0,0 +1,133 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openstack.nova.model.Server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/*
+ * Groups boots of the same template that arrive within a short window into
+ * a single multi-create request, then hands each caller one of the servers.
+ * JNLP templates are booted one at a time, since every server must get a
+ * user-data token of its own. There is one batcher per cloud id, so that
+ * boots queued when the cloud is reconfigured are still sent, with the new
+ * configuration.
+ */
+public class BootBatcher {
+
+	/* Milliseconds. */
+	private static final long WINDOW = 200;
+
+	/* Nova rejects very large multi-create requests. */
+	private static final int MAX_BATCH = 50;
+
+	private static final ConcurrentMap<String, BootBatcher> batchers = new ConcurrentHashMap<String, BootBatcher>();
+
+	/* The cloud as last configured. */
+	private volatile OpenStackCloud cloud;
+
+	/* Guarded by this. */
+	private final Map<String, List<SettableFuture<Server>>> pending = new HashMap<String, List<SettableFuture<Server>>>();
+
+	private BootBatcher(OpenStackCloud cloud) {
+		this.cloud = cloud;
+	}
+
+	/* The batcher of the cloud's id, now booting with the given configuration. */
+	public static BootBatcher get(OpenStackCloud cloud) {
+		String key = String.valueOf(cloud.id);
+		BootBatcher batcher = batchers.get(key);
+		if( batcher == null ) {
+			BootBatcher fresh = new BootBatcher(cloud);
+			batcher = batchers.putIfAbsent(key, fresh);
+			if( batcher == null )
+				return fresh;
+		}
+		batcher.cloud = cloud;
+		return batcher;
+	}
+
+	public ListenableFuture<Server> submit(final SlaveTemplate template) {
+		SettableFuture<Server> future = SettableFuture.create();
+		if( template.jnlp ) {
+			List<SettableFuture<Server>> single = new ArrayList<SettableFuture<Server>>();
+			single.add(future);
+			send(template, single);
+			return future;
+		}
+		List<SettableFuture<Server>> full = null;
+		synchronized( this ) {
+			List<SettableFuture<Server>> batch = pending.get(template.id);
+			if( batch == null ) {
+				final List<SettableFuture<Server>> fresh = new ArrayList<SettableFuture<Server>>();
+				batch = fresh;
+				pending.put(template.id, batch);
+				/* Only ever flushes this batch; a full one may have been sent already. */
+				OpenStackExecutors.timer().schedule(new Runnable() {
+					public void run() {
+						flush(template, fresh);
+					}
+				}, WINDOW, TimeUnit.MILLISECONDS);
+			}
+			batch.add(future);
+			if( batch.size() >= MAX_BATCH )
+				full = batch;
+		}
+		if( full != null )
+			flush(template, full);
+		return future;
+	}
+
+	/* Sends the batch, unless it was already sent. */
+	private void flush(final SlaveTemplate template, final List<SettableFuture<Server>> batch) {
+		synchronized( this ) {
+			if( pending.get(template.id) != batch )
+				return;
+			pending.remove(template.id);
+		}
+		send(template, batch);
+	}
+
+	private void send(final SlaveTemplate template, final List<SettableFuture<Server>> batch) {
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				boot(template, batch);
+			}
+		});
+	}
+
+	private void boot(SlaveTemplate template, List<SettableFuture<Server>> batch) {
+		OpenStackCloud cloud = this.cloud;
+		List<Server> servers;
+		try {
+			if( batch.size() == 1 ) {
+				servers = new ArrayList<Server>();
+				servers.add(cloud.boot(template));
+			} else {
+				servers = cloud.boot(template, batch.size());
+			}
+		} catch( RuntimeException e ) {
+			for( SettableFuture<Server> future : batch )
+				future.setException(e);
+			return;
+		}
+
+		for( int i = 0; i < batch.size(); i++ ) {
+			if( i < servers.size() )
+				batch.get(i).set(servers.get(i));
+			else
+				batch.get(i).setException(new IllegalStateException(
+					"Only " + servers.size() + " of " + batch.size() + " servers were created"));
+		}
+	}
+}
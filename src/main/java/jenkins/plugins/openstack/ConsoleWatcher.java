@@ -0,0 +1,157 @@
+package jenkins.plugins.openstack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/*
+ * Tails the console log of a booting server with os-getConsoleOutput and
+ * settles on the first line that matches the template's failure or ready
+ * pattern. Nova can only return the last so many lines, so each request
+ * asks for about twice as many as were new the time before, and the lines
+ * already seen are found again by the last few of them. A console that
+ * cannot be read, or that matches nothing for long enough, settles as
+ * UNKNOWN and provisioning goes on as it would without the patterns. The
+ * clock restarts once the server is ACTIVE, so that a slow build does not
+ * eat into the time the guest has to boot.
+ */
+public class ConsoleWatcher {
+
+	private static final Logger LOGGER = Logger.getLogger(ConsoleWatcher.class.getName());
+
+	public enum Outcome { READY, FAILED, UNKNOWN }
+
+	private static final long INTERVAL = TimeUnit.SECONDS.toMillis(2);
+	private static final long MAX_WAIT = TimeUnit.MINUTES.toMillis(15);
+
+	private static final int INITIAL_LENGTH = 50;
+	private static final int MAX_LENGTH = 2000;
+
+	/* How many of the last lines seen mark where to pick up. */
+	private static final int ANCHOR = 3;
+
+	private final OpenStackCloud cloud;
+	private final String serverId;
+	private final Pattern ready;
+	private final Pattern failure;
+	private volatile long deadline = System.currentTimeMillis() + MAX_WAIT;
+	private final SettableFuture<Outcome> outcome = SettableFuture.create();
+	private volatile String matched;
+
+	/* Only touched by the poll, which never overlaps itself. */
+	private List<String> anchor = Collections.emptyList();
+	private int length = INITIAL_LENGTH;
+
+	public ConsoleWatcher(OpenStackCloud cloud, String serverId, Pattern ready, Pattern failure) {
+		this.cloud = cloud;
+		this.serverId = serverId;
+		this.ready = ready;
+		this.failure = failure;
+	}
+
+	public void start() {
+		OpenStackExecutors.timer().schedule(new Runnable() {
+			public void run() {
+				if( outcome.isDone() )
+					return;
+				try {
+					poll();
+				} catch( RuntimeException e ) {
+					/* Not there yet while the server is scheduled, or not supported at all. */
+					LOGGER.log(Level.FINE, "Failed to read the console of server " + serverId, e);
+				}
+				if( outcome.isDone() )
+					return;
+				if( System.currentTimeMillis() > deadline )
+					outcome.set(Outcome.UNKNOWN);
+				else
+					OpenStackExecutors.timer().schedule(this, INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}, INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/* Gives the console the full wait from now, e.g. once the server is ACTIVE. */
+	public void restartClock() {
+		deadline = System.currentTimeMillis() + MAX_WAIT;
+	}
+
+	/* Stops watching; an outcome not reached yet is UNKNOWN. */
+	public void stop() {
+		outcome.set(Outcome.UNKNOWN);
+	}
+
+	public ListenableFuture<Outcome> whenSettled() {
+		return outcome;
+	}
+
+	/* The outcome, or null while still watching. */
+	public Outcome getOutcome() {
+		if( !outcome.isDone() )
+			return null;
+		try {
+			return outcome.get();
+		} catch( ExecutionException e ) {
+			return Outcome.UNKNOWN;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return Outcome.UNKNOWN;
+		}
+	}
+
+	/* The line that settled the outcome, if a pattern matched. */
+	public String getMatchedLine() {
+		return matched;
+	}
+
+	void poll() {
+		String output = cloud.execute(ServerActions.consoleOutput(serverId, length));
+		List<String> lines = output.length() > 0
+			? Arrays.asList(output.split("\r?\n"))
+			: Collections.<String>emptyList();
+
+		int from = indexAfterAnchor(lines);
+		for( int i = from; i < lines.size(); i++ ) {
+			String line = lines.get(i);
+			if( failure != null && failure.matcher(line).find() ) {
+				settle(Outcome.FAILED, line);
+				return;
+			}
+			if( ready != null && ready.matcher(line).find() ) {
+				settle(Outcome.READY, line);
+				return;
+			}
+		}
+
+		if( from == 0 && !anchor.isEmpty() && lines.size() >= length )
+			/* More was new than was asked for; some lines may have been missed. */
+			length = Math.min(length * 2, MAX_LENGTH);
+		else
+			length = Math.min(Math.max((lines.size() - from) * 2, INITIAL_LENGTH), MAX_LENGTH);
+		anchor = new ArrayList<String>(lines.subList(Math.max(lines.size() - ANCHOR, 0), lines.size()));
+	}
+
+	/* Where the lines not seen before start; 0 if the last ones seen are not there. */
+	private int indexAfterAnchor(List<String> lines) {
+		if( anchor.isEmpty() )
+			return 0;
+		for( int i = lines.size() - anchor.size(); i >= 0; i-- )
+			if( lines.subList(i, i + anchor.size()).equals(anchor) )
+				return i + anchor.size();
+		return 0;
+	}
+
+	private void settle(Outcome result, String line) {
+		matched = line;
+		if( outcome.set(result) )
+			LOGGER.info("Console of server " + serverId + " is " + result + ": " + line);
+	}
+}
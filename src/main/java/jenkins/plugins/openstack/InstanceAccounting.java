@@ -0,0 +1,165 @@
+package jenkins.plugins.openstack;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Counts the servers this plugin owns in a cloud, both boots in flight and
+ * servers that exist, so that the instance caps can be checked without
+ * listing servers. The counts are kept up to date as servers are booted
+ * and deleted, and periodically corrected by OpenStackReconciler from the
+ * servers tagged with the cloud's metadata. Every change is passed on to
+ * the cloud's QuotaView, so a reservation also needs room in the quota.
+ * There is one instance per cloud id, so that boots in flight are still
+ * counted after the cloud is reconfigured.
+ */
+public class InstanceAccounting {
+
+	private static final ConcurrentMap<String, InstanceAccounting> accountings = new ConcurrentHashMap<String, InstanceAccounting>();
+
+	private final QuotaView quota;
+
+	private final AtomicInteger total = new AtomicInteger();
+	private final ConcurrentMap<String, Counts> templates = new ConcurrentHashMap<String, Counts>();
+
+	private static final class Counts {
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicInteger live = new AtomicInteger();
+
+		int total() {
+			return pending.get() + live.get();
+		}
+	}
+
+	private InstanceAccounting(QuotaView quota) {
+		this.quota = quota;
+	}
+
+	/* The accounting of the cloud id, passing changes on to the given quota view when new. */
+	public static InstanceAccounting get(String cloudId, QuotaView quota) {
+		String key = String.valueOf(cloudId);
+		InstanceAccounting a = accountings.get(key);
+		if( a == null ) {
+			InstanceAccounting fresh = new InstanceAccounting(quota);
+			a = accountings.putIfAbsent(key, fresh);
+			if( a == null )
+				a = fresh;
+		}
+		return a;
+	}
+
+	private Counts counts(String templateId) {
+		Counts counts = templates.get(templateId);
+		if( counts == null ) {
+			Counts fresh = new Counts();
+			counts = templates.putIfAbsent(templateId, fresh);
+			if( counts == null )
+				counts = fresh;
+		}
+		return counts;
+	}
+
+	/*
+	 * Reserves room for one boot if both the cloud and the template are
+	 * below their caps and the quota has room. Every successful reservation
+	 * must be followed by either booted() or failed().
+	 */
+	public boolean reserve(SlaveTemplate template, int cloudCap) {
+		Counts counts = counts(template.id);
+		synchronized( counts ) {
+			if( counts.total() >= template.getInstanceCap() )
+				return false;
+			while( true ) {
+				int current = total.get();
+				if( current >= cloudCap )
+					return false;
+				if( total.compareAndSet(current, current + 1) )
+					break;
+			}
+			counts.pending.incrementAndGet();
+		}
+
+		/* Checked last, as it may have to ask Nova. */
+		if( !quota.reserve(template) ) {
+			synchronized( counts ) {
+				if( decrement(counts.pending) )
+					decrement(total);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/* Reserves room for a boot requested explicitly, ignoring the caps. */
+	public void forceReserve(SlaveTemplate template) {
+		Counts counts = counts(template.id);
+		synchronized( counts ) {
+			total.incrementAndGet();
+			counts.pending.incrementAndGet();
+		}
+		quota.forceReserve(template);
+	}
+
+	public void booted(String templateId) {
+		Counts counts = counts(templateId);
+		synchronized( counts ) {
+			decrement(counts.pending);
+			counts.live.incrementAndGet();
+		}
+		quota.booted(templateId);
+	}
+
+	public void failed(String templateId) {
+		Counts counts = counts(templateId);
+		synchronized( counts ) {
+			if( decrement(counts.pending) )
+				decrement(total);
+		}
+		quota.failed(templateId);
+	}
+
+	public void deleted(String templateId) {
+		Counts counts = counts(templateId);
+		synchronized( counts ) {
+			if( decrement(counts.live) )
+				decrement(total);
+		}
+		quota.deleted(templateId);
+	}
+
+	/* Replaces the live counts with those observed in a server listing. */
+	public void reconcile(Map<String, Integer> observed) {
+		for( String templateId : observed.keySet() )
+			counts(templateId);
+		for( Map.Entry<String, Counts> entry : templates.entrySet() ) {
+			Counts counts = entry.getValue();
+			Integer live = observed.get(entry.getKey());
+			synchronized( counts ) {
+				int delta = (live == null ? 0 : live) - counts.live.get();
+				counts.live.addAndGet(delta);
+				total.addAndGet(delta);
+			}
+		}
+	}
+
+	private static boolean decrement(AtomicInteger counter) {
+		while( true ) {
+			int current = counter.get();
+			if( current <= 0 )
+				return false;
+			if( counter.compareAndSet(current, current - 1) )
+				return true;
+		}
+	}
+
+	public int getTotal() {
+		return total.get();
+	}
+
+	public int getTotal(String templateId) {
+		Counts counts = templates.get(templateId);
+		return counts == null ? 0 : counts.total();
+	}
+}
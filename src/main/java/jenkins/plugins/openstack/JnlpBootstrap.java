@@ -0,0 +1,194 @@
+package jenkins.plugins.openstack;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.UnprotectedRootAction;
+import hudson.remoting.Base64;
+import hudson.slaves.SlaveComputer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/*
+ * Lets servers of JNLP templates start their own agent. Each server is
+ * booted on its own, with a user-data script holding the master URL and a
+ * random token of its own; once the server is up the script trades the
+ * token and its server id for the node name and that node's JNLP secret,
+ * here at /openstack-jnlp/agent, then connects back. The master's secrets
+ * never appear in user-data, which anyone on the server can read, and no
+ * server knows the token of another. The script asks again until the
+ * node is registered, so it does not matter which side is ready first.
+ * Tokens are written to disk until the server is deleted, so servers
+ * still booting across a restart can connect.
+ */
+@Extension
+public class JnlpBootstrap implements UnprotectedRootAction {
+
+	private static final Logger LOGGER = Logger.getLogger(JnlpBootstrap.class.getName());
+
+	public static final String URL_NAME = "openstack-jnlp";
+
+	/* Changes within this long of each other are written to disk at once. */
+	private static final long SAVE_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+	/* The token each booted server was given, until the server is deleted; loaded on first use. */
+	private static final ConcurrentMap<String, String> tokens = new ConcurrentHashMap<String, String>();
+
+	/* Guarded by tokens. */
+	private static boolean loaded;
+	private static boolean saveScheduled;
+
+	public static String newToken() {
+		return UUID.randomUUID().toString();
+	}
+
+	public static void register(String serverId, String token) {
+		synchronized( tokens ) {
+			load();
+			tokens.put(serverId, token);
+			scheduleSave();
+		}
+	}
+
+	public static void forget(String serverId) {
+		synchronized( tokens ) {
+			load();
+			if( tokens.remove(serverId) != null )
+				scheduleSave();
+		}
+	}
+
+	private static XmlFile getFile() {
+		return new XmlFile(Hudson.XSTREAM, new File(Hudson.getInstance().getRootDir(), "openstack-jnlp-tokens.xml"));
+	}
+
+	/* Guarded by tokens. */
+	@SuppressWarnings("unchecked")
+	private static void load() {
+		if( loaded )
+			return;
+		loaded = true;
+		XmlFile file = getFile();
+		if( !file.exists() )
+			return;
+		try {
+			tokens.putAll((Map<String, String>) file.read());
+		} catch( IOException e ) {
+			LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+		}
+	}
+
+	/* Guarded by tokens. */
+	private static void scheduleSave() {
+		if( saveScheduled )
+			return;
+		saveScheduled = true;
+		OpenStackExecutors.timer().schedule(new Runnable() {
+			public void run() {
+				save();
+			}
+		}, SAVE_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	private static void save() {
+		XmlFile file = getFile();
+		Map<String, String> snapshot;
+		synchronized( tokens ) {
+			saveScheduled = false;
+			snapshot = new HashMap<String, String>(tokens);
+		}
+		try {
+			file.write(snapshot);
+		} catch( IOException e ) {
+			LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+		}
+	}
+
+	/*
+	 * The cloud-init script for a server of the template, base64-encoded
+	 * as Nova wants it. The agent runs from the template's remote root.
+	 */
+	public static String getUserData(SlaveTemplate template, String token) {
+		String rootUrl = Hudson.getInstance().getRootUrl();
+		if( rootUrl == null )
+			throw new IllegalStateException("The Jenkins URL must be configured for JNLP templates");
+		String remoteFS = template.remoteFS.length() > 0 ? template.remoteFS : "/var/lib/jenkins";
+		String script =
+			"#!/bin/sh\n" +
+			"master='" + rootUrl + "'\n" +
+			"token='" + token + "'\n" +
+			"mkdir -p '" + remoteFS + "' && cd '" + remoteFS + "' || exit 1\n" +
+			"server=$(curl -sf http://169.254.169.254/openstack/latest/meta_data.json" +
+				" | sed -n 's/.*\"uuid\": *\"\\([^\"]*\\)\".*/\\1/p')\n" +
+			"until agent=$(curl -sf \"${master}" + URL_NAME + "/agent?server=${server}&token=${token}\"); do sleep 2; done\n" +
+			"name=$(echo \"$agent\" | sed -n 1p)\n" +
+			"secret=$(echo \"$agent\" | sed -n 2p)\n" +
+			"until curl -sf -o slave.jar \"${master}jnlpJars/slave.jar\"; do sleep 2; done\n" +
+			"nohup java -cp slave.jar hudson.remoting.jnlp.Main -headless -url \"$master\" \"$secret\" \"$name\"" +
+				" > agent.log 2>&1 &\n";
+		try {
+			return Base64.encode(script.getBytes("UTF-8"));
+		} catch( UnsupportedEncodingException e ) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/* Answers with the node name and its JNLP secret, one per line. */
+	public void doAgent(StaplerRequest req,
+						StaplerResponse rsp,
+						@QueryParameter String server,
+						@QueryParameter String token) throws IOException {
+		String expected;
+		synchronized( tokens ) {
+			load();
+			expected = tokens.get(Util.fixNull(server));
+		}
+		if( expected == null || token == null ||
+			!MessageDigest.isEqual(expected.getBytes("UTF-8"), token.getBytes("UTF-8")) ) {
+			rsp.sendError(403);
+			return;
+		}
+		for( Node node : Hudson.getInstance().getNodes() ) {
+			if( node instanceof OpenStackSlave && server.equals(((OpenStackSlave) node).serverId) ) {
+				Computer c = node.toComputer();
+				if( c instanceof SlaveComputer ) {
+					rsp.setContentType("text/plain;charset=UTF-8");
+					rsp.getWriter().print(node.getNodeName() + "\n" + ((SlaveComputer) c).getJnlpMac() + "\n");
+					return;
+				}
+			}
+		}
+		/* Not registered yet; the script asks again. */
+		rsp.sendError(404);
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return URL_NAME;
+	}
+}
@@ -2,7 +2,6 @@ package jenkins.plugins.openstack;
 
 import hudson.Extension;
 import hudson.Util;
-import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Hudson;
@@ -21,28 +20,26 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
-import org.openstack.keystone.KeystoneClient;
-import org.openstack.keystone.api.Authenticate;
-import org.openstack.keystone.model.Access;
-import org.openstack.keystone.model.Authentication;
-import org.openstack.keystone.model.Authentication.PasswordCredentials;
-import org.openstack.keystone.utils.KeystoneUtils;
 import org.openstack.nova.NovaClient;
-import org.openstack.nova.api.FlavorsCore;
-import org.openstack.nova.api.ImagesCore;
+import org.openstack.nova.NovaCommand;
 import org.openstack.nova.api.ServersCore;
-import org.openstack.nova.model.Flavor;
-import org.openstack.nova.model.Flavors;
-import org.openstack.nova.model.Image;
-import org.openstack.nova.model.Images;
 import org.openstack.nova.model.Server;
 import org.openstack.nova.model.ServerForCreate;
 import org.openstack.nova.model.ServerForCreate.SecurityGroup;
@@ -50,14 +47,34 @@ import org.openstack.nova.model.Servers;
 
 public class OpenStackCloud extends AbstractCloudImpl {
 
+	private static final Logger LOGGER = Logger.getLogger(OpenStackCloud.class.getName());
+
+	/* Metadata set on every server booted by the plugin. */
+	public static final String METADATA_CLOUD = "jenkins-openstack-cloud";
+	public static final String METADATA_TEMPLATE = "jenkins-openstack-template";
+	public static final String METADATA_MASTER = "jenkins-openstack-master";
+
 	public final String id;
 	public final String authUrl;
     public final String authUsername;
     public final String authPassword;
 	public final String authTenant;
 	public final String regionName;
+	public final String cacheTtlStr;
+	public final String apiLimits;
+	public final String maxConcurrentBootsStr;
     public final List<SlaveTemplate> templates;
 
+    private transient OpenStackSession session;
+    private transient ResourceCache resources;
+    private transient ServerStatusPoller poller;
+    private transient ServerStateMap states;
+    private transient QuotaView quota;
+    private transient InstanceAccounting accounting;
+    private transient BootBatcher batcher;
+    private transient TemplateIndex index;
+    private transient ZoneBalancer zones;
+
     @DataBoundConstructor
     public OpenStackCloud(String id,
     		 			  String authUrl,
@@ -66,6 +83,9 @@ public class OpenStackCloud extends AbstractCloudImpl {
     		 			  String authTenant,
     		 			  String regionName,
     		 			  String instanceCapStr,
+    		 			  String cacheTtlStr,
+    		 			  String apiLimits,
+    		 			  String maxConcurrentBootsStr,
     		 			  List<SlaveTemplate> templates) {
         super(id, instanceCapStr);
         this.id = Util.fixEmptyAndTrim(id);
@@ -74,6 +94,9 @@ public class OpenStackCloud extends AbstractCloudImpl {
         this.authPassword = authPassword;
         this.authTenant = authTenant;
         this.regionName = regionName;
+        this.cacheTtlStr = cacheTtlStr;
+        this.apiLimits = apiLimits;
+        this.maxConcurrentBootsStr = maxConcurrentBootsStr;
         
         if( templates == null )
         	templates = Collections.emptyList();
@@ -85,6 +108,32 @@ public class OpenStackCloud extends AbstractCloudImpl {
         for( SlaveTemplate template : templates ) {
         	template.setParent(this);
         }
+        index = new TemplateIndex(templates);
+        session = new OpenStackSession(authUrl, authUsername, authPassword, authTenant, regionName, apiLimits);
+        session.keepFresh();
+        resources = new ResourceCache(session, getCacheTtl());
+        states = new ServerStateMap(this);
+        poller = new ServerStatusPoller(session, states);
+        /* Both carry the reservations of boots in flight across a reconfiguration. */
+        quota = QuotaView.get(this);
+        accounting = InstanceAccounting.get(id, quota);
+        batcher = BootBatcher.get(this);
+        zones = ZoneBalancer.get(id);
+
+        getScheduler().setMaxConcurrent(getMaxConcurrentBoots());
+        states.start();
+        ServerStateLoader.loadAsync(this);
+
+        /* Seed the counts rather than wait for the next periodic pass. */
+        OpenStackExecutors.timer().execute(new Runnable() {
+        	public void run() {
+        		try {
+        			OpenStackReconciler.reconcile(OpenStackCloud.this);
+        		} catch( RuntimeException e ) {
+        			LOGGER.log(Level.WARNING, "Failed to count servers for cloud " + id, e);
+        		}
+        	}
+        });
         return this;
     }
     
@@ -93,61 +142,319 @@ public class OpenStackCloud extends AbstractCloudImpl {
     									String authPassword,
     									String authTenant,
     									String regionName) {
-    	KeystoneClient keystone = new KeystoneClient(authUrl);
-    	Authentication authentication = new Authentication();
-    	PasswordCredentials passwordCredentials = new PasswordCredentials();
-    	passwordCredentials.setUsername(authUsername);
-    	passwordCredentials.setPassword(authPassword);
-    	authentication.setPasswordCredentials(passwordCredentials);
-    	authentication.setTenantName(authTenant);   	
-    	Access access = keystone.execute(new Authenticate(authentication));
-    	
-    	NovaClient novaClient = new NovaClient(
-    								KeystoneUtils.findEndpointURL(
-    										access.getServiceCatalog(),
-    										"compute", null, "public"),
-    								access.getToken().getId());
-    	return novaClient;
+    	return new OpenStackSession(authUrl, authUsername, authPassword, authTenant, regionName).getClient();
     }
 
 	public NovaClient connect() {
-		return connect(authUrl, authUsername, authPassword, authTenant, regionName);
+		return session.getClient();
+	}
+
+	public <R> R execute(NovaCommand<R> command) {
+		return session.execute(command);
+	}
+
+	/* See OpenStackSession.read(). */
+	public <R> R read(String key, NovaCommand<R> command) {
+		return session.read(key, command);
+	}
+
+	public OpenStackSession getSession() {
+		return session;
+	}
+
+	public int getAuthCallsPerMinute() {
+		return session.getAuthCallsPerMinute();
 	}
 	
-	public static String getFlavorRef(NovaClient client, String flavorId) {
-		Flavors flavors = client.execute(FlavorsCore.listFlavors());
-    	for( Flavor flavor : flavors ) {
-    		if( flavor.getId().equals(flavorId) || flavor.getName().equals(flavorId) ) {
-    			return flavor.getId();
-    		}
-    	}
-    	return null;
+	public int getCacheTtl() {
+		try {
+			return Integer.parseInt(cacheTtlStr);
+		} catch (NumberFormatException e) {
+			return ResourceCache.DEFAULT_TTL_MINUTES;
+		}
 	}
 
-	public static String getImageRef(NovaClient client, String imageId) {
-		Images images = client.execute(ImagesCore.listImages());
-    	for( Image image : images ) {
-    		if( image.getId().equals(imageId) || image.getName().equals(imageId) ) {
-    			return image.getId();
-    		}
-    	}
-    	return null;
+	public int getMaxConcurrentBoots() {
+		try {
+			return Integer.parseInt(maxConcurrentBootsStr);
+		} catch (NumberFormatException e) {
+			return ProvisioningScheduler.DEFAULT_MAX_CONCURRENT;
+		}
+	}
+
+	public ResourceCache getResources() {
+		return resources;
+	}
+
+	public ServerStatusPoller getPoller() {
+		return poller;
+	}
+
+	public ServerStateMap getServerStates() {
+		return states;
+	}
+
+	public QuotaView getQuota() {
+		return quota;
+	}
+
+	public InstanceAccounting getAccounting() {
+		return accounting;
+	}
+
+	public ZoneBalancer getZones() {
+		return zones;
+	}
+
+	public BootBatcher getBatcher() {
+		return batcher;
+	}
+
+	public TerminationQueue getTerminationQueue() {
+		return TerminationQueue.get(id);
+	}
+
+	public ProvisioningScheduler getScheduler() {
+		return ProvisioningScheduler.get(id);
+	}
+
+	public ProvisioningMetrics getMetrics() {
+		return ProvisioningMetrics.get(id);
+	}
+
+	public JSONObject getMetricsJSON() {
+		JSONObject gauges = new JSONObject();
+		gauges.put("instances", accounting.getTotal());
+		gauges.put("booting", poller.getInFlight());
+		gauges.put("launching", getMetrics().getLaunching());
+		gauges.put("terminating", getTerminationQueue().getDepth());
+		gauges.put("queued", getScheduler().getQueued());
+		gauges.put("inFlight", getScheduler().getInFlight());
+		gauges.put("connecting", getScheduler().getConnecting());
+		for( SlaveTemplate t : templates ) {
+			JSONObject template = new JSONObject();
+			template.put("instances", accounting.getTotal(t.id));
+			template.put("standby", t.getPool().getReady());
+			gauges.put(t.id, template);
+		}
+
+		JSONObject api = new JSONObject();
+		api.put("keystone", session.getAuthCalls());
+		api.put("nova", session.getCalls());
+		api.put("novaFailures", session.getFailures());
+		api.put("novaThrottled", session.getThrottled());
+		api.put("novaDelayed", session.getDelayed());
+		api.put("novaCoalesced", session.getCoalesced());
+
+		JSONObject r = getMetrics().toJSON();
+		r.put("cloud", id);
+		r.put("gauges", gauges);
+		r.put("quota", quota.toJSON());
+		r.put("api", api);
+		return r;
+	}
+
+	/* Metrics as JSON, at /cloud/NAME/metrics. */
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(getMetricsJSON().toString(2));
+	}
+
+	/*
+	 * The template a server was booted from, if this cloud booted it. Other
+	 * masters may use the same tenant and cloud name, so the server must
+	 * also carry this master's identity.
+	 */
+	public String getOwningTemplateId(Server server) {
+		Map<String, String> metadata = server.getMetadata();
+		if( metadata == null ||
+			!Util.fixNull(id).equals(metadata.get(METADATA_CLOUD)) ||
+			!getMasterId().equals(metadata.get(METADATA_MASTER)) )
+			return null;
+		return metadata.get(METADATA_TEMPLATE);
+	}
+
+	/* Identifies this master; derived from its secret key, so it survives restarts and URL changes. */
+	public static String getMasterId() {
+		return Util.getDigestOf(Hudson.getInstance().getSecretKey());
+	}
+
+	/*
+	 * Template validation only has the credentials from the form, so reuse
+	 * the cache of a configured cloud with the same account if there is one.
+	 */
+	static ResourceCache getResources(String authUrl,
+									  String authUsername,
+									  String authPassword,
+									  String authTenant,
+									  String regionName) {
+		for( Cloud cloud : Hudson.getInstance().clouds ) {
+			if( cloud instanceof OpenStackCloud ) {
+				OpenStackCloud c = (OpenStackCloud) cloud;
+				if( Util.fixNull(authUrl).equals(c.authUrl) &&
+					Util.fixNull(authUsername).equals(c.authUsername) &&
+					Util.fixNull(authPassword).equals(c.authPassword) &&
+					Util.fixNull(authTenant).equals(c.authTenant) &&
+					Util.fixNull(regionName).equals(c.regionName) )
+					return c.resources;
+			}
+		}
+		return new ResourceCache(
+					new OpenStackSession(authUrl, authUsername, authPassword, authTenant, regionName),
+					ResourceCache.DEFAULT_TTL_MINUTES);
 	}
 		
-	public static Server boot(NovaClient client, SlaveTemplate slave) {
+	/* The token is for the JNLP bootstrap, and null for SSH templates. */
+	protected ServerForCreate buildServer(SlaveTemplate slave, String zone, String token) {
 		ServerForCreate serverForCreate = new ServerForCreate();
 		serverForCreate.setName(slave.id);
-		serverForCreate.setImageRef(getImageRef(client, slave.imageId));
-		serverForCreate.setFlavorRef(getFlavorRef(client, slave.flavorId));
+		serverForCreate.setImageRef(resources.getImageRef(slave.imageId));
+		serverForCreate.setFlavorRef(resources.getFlavorRef(slave.flavorId));
+		serverForCreate.getMetadata().put(METADATA_CLOUD, Util.fixNull(id));
+		serverForCreate.getMetadata().put(METADATA_TEMPLATE, slave.id);
+		serverForCreate.getMetadata().put(METADATA_MASTER, getMasterId());
+		if( zone != null )
+			serverForCreate.setAvailabilityZone(zone);
+		if( token != null )
+			serverForCreate.setUserData(JnlpBootstrap.getUserData(slave, token));
 		if( slave.keyName.length() > 0 )
 			serverForCreate.setKeyName(slave.keyName);
 		if( slave.securityGroups != null )
 			for( String securityGroup : slave.securityGroups )
 				if( securityGroup.length() > 0 ) 
 					serverForCreate.getSecurityGroups().add(new SecurityGroup(securityGroup));
-		
-		Server server = client.execute(ServersCore.createServer(serverForCreate));
-		return server;
+		return serverForCreate;
+	}
+
+	public Server boot(SlaveTemplate slave) {
+		return boot(slave, zones.choose(slave, Collections.<String>emptyList()));
+	}
+
+	/* Boots a server in the given zone, or wherever Nova likes for null. */
+	public Server boot(SlaveTemplate slave, String zone) {
+		String token = slave.jnlp ? JnlpBootstrap.newToken() : null;
+		long started = System.currentTimeMillis();
+		try {
+			Server server = execute(ServersCore.createServer(buildServer(slave, zone, token)));
+			zones.placed(server.getId(), zone);
+			if( token != null )
+				JnlpBootstrap.register(server.getId(), token);
+			accounting.booted(slave.id);
+			getMetrics().record(slave.id, ProvisioningMetrics.CREATE, System.currentTimeMillis() - started);
+			return server;
+		} catch( RuntimeException e ) {
+			accounting.failed(slave.id);
+			getMetrics().error(slave.id, "boot");
+			getMetrics().bootFailed();
+			/* The image or flavor may have been replaced under the same name. */
+			resources.invalidate(slave);
+			throw e;
+		}
+	}
+
+	/*
+	 * Boots up to count servers with one multi-create request, all in the
+	 * same zone. Nova only returns the reservation, so the servers are
+	 * looked up by it afterwards. The servers share their user-data, so
+	 * JNLP templates, whose tokens must differ, cannot be booted this way.
+	 */
+	public List<Server> boot(SlaveTemplate slave, int count) {
+		if( slave.jnlp )
+			throw new IllegalArgumentException("JNLP template " + slave.id + " cannot be booted in batches");
+		String zone = zones.choose(slave, Collections.<String>emptyList());
+		long started = System.currentTimeMillis();
+		List<Server> servers;
+		try {
+			ServerForCreate serverForCreate = buildServer(slave, zone, null);
+			serverForCreate.setMin(1);
+			serverForCreate.setMax(count);
+			String reservation = execute(new CreateServers(serverForCreate));
+			servers = execute(new ListReservedServers(reservation));
+		} catch( RuntimeException e ) {
+			/*
+			 * Whatever was created without being found is left to the
+			 * reconciler, which deletes it as an orphan.
+			 */
+			for( int i = 0; i < count; i++ )
+				accounting.failed(slave.id);
+			getMetrics().error(slave.id, "boot");
+			getMetrics().bootFailed();
+			resources.invalidate(slave);
+			throw e;
+		}
+
+		for( Server server : servers )
+			zones.placed(server.getId(), zone);
+		long elapsed = System.currentTimeMillis() - started;
+		for( int i = 0; i < count; i++ ) {
+			if( i < servers.size() ) {
+				accounting.booted(slave.id);
+				getMetrics().record(slave.id, ProvisioningMetrics.CREATE, elapsed);
+			} else {
+				accounting.failed(slave.id);
+				getMetrics().error(slave.id, "boot");
+				getMetrics().bootFailed();
+			}
+		}
+		return servers;
+	}
+
+	/*
+	 * POST servers asking for the reservation ID, which the client
+	 * library's model cannot express. Returns the reservation ID.
+	 */
+	private static final class CreateServers implements NovaCommand<String> {
+
+		private final ServerForCreate server;
+
+		CreateServers(ServerForCreate server) {
+			this.server = server;
+		}
+
+		public String execute(WebTarget target) {
+			JSONObject s = new JSONObject();
+			s.put("name", server.getName());
+			s.put("imageRef", server.getImageRef());
+			s.put("flavorRef", server.getFlavorRef());
+			s.put("metadata", server.getMetadata());
+			s.put("min_count", server.getMin());
+			s.put("max_count", server.getMax());
+			s.put("return_reservation_id", true);
+			if( server.getAvailabilityZone() != null )
+				s.put("availability_zone", server.getAvailabilityZone());
+			if( server.getKeyName() != null )
+				s.put("key_name", server.getKeyName());
+			if( server.getUserData() != null )
+				s.put("user_data", server.getUserData());
+			JSONArray groups = new JSONArray();
+			for( SecurityGroup group : server.getSecurityGroups() )
+				groups.add(new JSONObject().element("name", group.getName()));
+			if( !groups.isEmpty() )
+				s.put("security_groups", groups);
+			String response = target.path("servers")
+									.request(MediaType.APPLICATION_JSON)
+									.post(Entity.json(new JSONObject().element("server", s).toString()), String.class);
+			return JSONObject.fromObject(response).getString("reservation_id");
+		}
+	}
+
+	/* servers/detail?reservation_id=, which the client library has no command for. */
+	private static final class ListReservedServers implements NovaCommand<List<Server>> {
+
+		private final String reservation;
+
+		ListReservedServers(String reservation) {
+			this.reservation = reservation;
+		}
+
+		public List<Server> execute(WebTarget target) {
+			return target.path("servers").path("detail")
+						.queryParam("reservation_id", reservation)
+						.request(MediaType.APPLICATION_JSON)
+						.get(Servers.class)
+						.getList();
+		}
 	}
 	
     public List<SlaveTemplate> getTemplates() {
@@ -155,10 +462,8 @@ public class OpenStackCloud extends AbstractCloudImpl {
     }
 
     public SlaveTemplate getTemplate(Label label) {
-        for( SlaveTemplate t : templates )
-        	if( t.matches(label) )
-        		return t;
-        return null;
+        List<SlaveTemplate> matching = index.get(label);
+        return matching.isEmpty() ? null : matching.get(0);
     }
 
     public SlaveTemplate getTemplate(String id) {
@@ -180,8 +485,7 @@ public class OpenStackCloud extends AbstractCloudImpl {
     					 @QueryParameter String serverId)
     							 throws ServletException, IOException, FormException {
         checkPermission(PROVISION);
-        NovaClient client = connect();
-        Server server = client.execute(ServersCore.showServer(serverId));
+        Server server = read("servers/" + serverId, ServersCore.showServer(serverId));
         SlaveTemplate t = getTemplate(server.getName());
         if( t == null )
         	rsp.sendError(404, "Template not found");
@@ -205,6 +509,7 @@ public class OpenStackCloud extends AbstractCloudImpl {
         	rsp.sendError(404, "Template not found");
 
         try {
+        	accounting.forceReserve(t);
         	OpenStackSlave node = t.provision();
         	Hudson.getInstance().addNode(node);
         	rsp.sendRedirect2(req.getContextPath()+ "/computer/" + node.getNodeName());
@@ -213,28 +518,41 @@ public class OpenStackCloud extends AbstractCloudImpl {
         }
     }
 
+    /* How many more servers could be had for the label, within the caps and quota. */
+    public int getRemainingCapacity(Label label) {
+    	long standing = 0;
+    	long templateRoom = 0;
+    	for( SlaveTemplate t : index.get(label) ) {
+    		int waiting = t.getPool().getReady() + t.getPool().getStopped();
+    		standing += waiting;
+    		long room = Math.min((long) t.getInstanceCap() - accounting.getTotal(t.id), quota.getRoom(t));
+    		templateRoom += Math.max(room, 0) + waiting;
+    	}
+    	long cloudRoom = (long) getInstanceCap() - accounting.getTotal() + standing;
+    	return (int) Math.max(0, Math.min(Math.min(cloudRoom, templateRoom), Integer.MAX_VALUE));
+    }
+
     @Override
 	public Collection<PlannedNode> provision(Label label, int workload) {
-        final SlaveTemplate t = getTemplate(label);
         List<PlannedNode> r = new ArrayList<PlannedNode>();
-        NovaClient client = connect();
+
+        /* Leave the rest to the other clouds that can serve the label. */
+        workload = Placement.share(this, label, workload);
         
         while( workload > 0 ) {
-        	Servers servers = client.execute(ServersCore.listServers());
-        	if( servers.getList().size() >= getInstanceCap() ) {
+        	SlaveTemplate t = index.choose(label, accounting);
+        	if( t == null )
+        		break;
+
+        	/* Standby and stopped servers are already counted against the caps. */
+        	Server standby = t.getPool().take();
+        	String stopped = standby == null && t.stopOnTerminate ? t.getPool().takeStopped() : null;
+        	if( standby == null && stopped == null && !accounting.reserve(t, getInstanceCap()) ) {
             	break;
             }
         	
-            r.add(new PlannedNode(t.id,
-                    Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                        public Node call() throws Exception {
-                            OpenStackSlave s = t.provision();
-                            Hudson.getInstance().addNode(s);
-                            s.toComputer().connect(false).get();
-                            return s;
-                        }
-                    })
-                    , t.getNumExecutors()));
+            Future<Node> future = standby != null ? getScheduler().attach(t, standby) : getScheduler().submit(t, stopped);
+            r.add(new PlannedNode(t.id, future, t.getNumExecutors()));
             workload--;
         }
         
@@ -243,7 +561,7 @@ public class OpenStackCloud extends AbstractCloudImpl {
 
     @Override
 	public boolean canProvision(Label label) {
-        return getTemplate(label) != null;
+        return !index.get(label).isEmpty();
     }
 
 	public static OpenStackCloud get(String id) {
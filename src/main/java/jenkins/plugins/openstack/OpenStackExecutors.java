@@ -0,0 +1,28 @@
+package jenkins.plugins.openstack;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/*
+ * Shared background threads for the plugin. Clouds are recreated each time
+ * the configuration is saved, so per-cloud housekeeping is scheduled here
+ * rather than on threads owned by any one cloud instance.
+ */
+final class OpenStackExecutors {
+
+	private static final int POOL_SIZE = 4;
+
+	private static final ScheduledExecutorService timer =
+		Executors.newScheduledThreadPool(POOL_SIZE,
+			new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+
+	private OpenStackExecutors() {
+	}
+
+	static ScheduledExecutorService timer() {
+		return timer;
+	}
+}
@@ -0,0 +1,169 @@
+package jenkins.plugins.openstack;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.nova.model.Server;
+
+/*
+ * Periodically compares what each cloud really runs against the plugin's
+ * own bookkeeping, using one listing per cloud, and tops up the standby
+ * pools once the counts are known. Stopped servers of stop-on-terminate
+ * templates that no node owns, e.g. after a restart, are picked up too.
+ *
+ * The same listing finds leaks in both directions. A server this master
+ * tagged for the cloud that neither a node nor the plugin itself accounts
+ * for is deleted, and a node whose server no longer exists is removed.
+ * Either only happens once it has been seen for a grace period, so
+ * servers and nodes in transition are left alone, and only when every
+ * page of the listing could be read. The work per pass is one listing
+ * and a few lookups per server, however many slaves there are.
+ */
+@Extension
+public class OpenStackReconciler extends AsyncPeriodicWork {
+
+	private static final Logger LOGGER = Logger.getLogger(OpenStackReconciler.class.getName());
+
+	private static final long GRACE = TimeUnit.MINUTES.toMillis(10);
+
+	/* When each suspected orphan or dead node was first seen, by cloud. */
+	private static final ConcurrentMap<String, Map<String, Long>> suspects = new ConcurrentHashMap<String, Map<String, Long>>();
+
+	public OpenStackReconciler() {
+		super("OpenStack reconciler");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit.MINUTES.toMillis(5);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		for( Cloud cloud : Hudson.getInstance().clouds ) {
+			if( cloud instanceof OpenStackCloud ) {
+				OpenStackCloud openstackCloud = (OpenStackCloud) cloud;
+				try {
+					reconcile(openstackCloud);
+				} catch( RuntimeException e ) {
+					e.printStackTrace(listener.error("Failed to reconcile cloud " + openstackCloud.id));
+				}
+			}
+		}
+	}
+
+	static void reconcile(OpenStackCloud cloud) {
+		Map<String, OpenStackSlave> nodes = new HashMap<String, OpenStackSlave>();
+		for( Node node : Hudson.getInstance().getNodes() )
+			if( node instanceof OpenStackSlave && OpenStackCloud.get(((OpenStackSlave) node).cloudId) == cloud )
+				nodes.put(((OpenStackSlave) node).serverId, (OpenStackSlave) node);
+
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Map<String, Server> orphans = new HashMap<String, Server>();
+		Map<String, Server> listed = new HashMap<String, Server>();
+		ServerListing listing = cloud.read("servers/detail", ServerListing.all());
+		for( Server server : listing.getList() ) {
+			listed.put(server.getId(), server);
+			String templateId = cloud.getOwningTemplateId(server);
+			if( templateId == null )
+				continue;
+			Integer count = counts.get(templateId);
+			counts.put(templateId, count == null ? 1 : count + 1);
+
+			if( nodes.containsKey(server.getId()) )
+				continue;
+			SlaveTemplate template = cloud.getTemplate(templateId);
+			if( template != null && template.stopOnTerminate && "SHUTOFF".equals(server.getStatus()) )
+				template.getPool().stopped(server.getId());
+			if( !isAccountedFor(cloud, server.getId(), templateId) )
+				orphans.put(server.getId(), server);
+		}
+		if( !listing.isComplete() ) {
+			/* Servers on the pages not read would look missing. */
+			LOGGER.warning("Listing of cloud " + cloud.id + " is incomplete; not reconciling it");
+			return;
+		}
+		cloud.getAccounting().reconcile(counts);
+
+		Map<String, Long> seen = suspects(cloud.id);
+		long now = System.currentTimeMillis();
+		synchronized( seen ) {
+			/* Forget suspects that have since been explained. */
+			for( Iterator<String> it = seen.keySet().iterator(); it.hasNext(); ) {
+				String key = it.next();
+				if( !orphans.containsKey(key) && !(nodes.containsKey(key) && !listed.containsKey(key)) )
+					it.remove();
+			}
+
+			for( Server server : orphans.values() ) {
+				if( !isOverdue(seen, server.getId(), now) )
+					continue;
+				String templateId = cloud.getOwningTemplateId(server);
+				LOGGER.info("Deleting server " + server.getId() + " (" + server.getName() + "), which no slave owns");
+				cloud.getMetrics().error(templateId, "orphan");
+				TerminationQueue.get(cloud.id).enqueue(server.getId(), templateId);
+				seen.remove(server.getId());
+			}
+
+			for( OpenStackSlave slave : nodes.values() ) {
+				if( listed.containsKey(slave.serverId) || !isOverdue(seen, slave.serverId, now) )
+					continue;
+				LOGGER.info("Removing " + slave.getNodeName() + ", whose server " + slave.serverId + " no longer exists");
+				cloud.getMetrics().error(slave.templateId, "dead-node");
+				try {
+					Hudson.getInstance().removeNode(slave);
+					seen.remove(slave.serverId);
+				} catch( IOException e ) {
+					LOGGER.log(Level.WARNING, "Failed to remove " + slave.getNodeName(), e);
+				}
+			}
+		}
+
+		for( SlaveTemplate template : cloud.getTemplates() ) {
+			template.getPool().trim();
+			template.getPool().refill();
+		}
+	}
+
+	/* Whether the plugin is busy with a server that has no node (yet). */
+	private static boolean isAccountedFor(OpenStackCloud cloud, String serverId, String templateId) {
+		return cloud.getPoller().isWatching(serverId) ||
+			   cloud.getTerminationQueue().contains(serverId) ||
+			   WarmPool.get(cloud.id, templateId).contains(serverId);
+	}
+
+	/* Records the suspect, and says whether it has been one for the grace period. */
+	private static boolean isOverdue(Map<String, Long> seen, String serverId, long now) {
+		Long first = seen.get(serverId);
+		if( first == null ) {
+			seen.put(serverId, now);
+			return false;
+		}
+		return now - first >= GRACE;
+	}
+
+	private static Map<String, Long> suspects(String cloudId) {
+		Map<String, Long> seen = suspects.get(cloudId);
+		if( seen == null ) {
+			Map<String, Long> fresh = new HashMap<String, Long>();
+			seen = suspects.putIfAbsent(cloudId, fresh);
+			if( seen == null )
+				seen = fresh;
+		}
+		return seen;
+	}
+}
@@ -1,14 +1,31 @@
 package jenkins.plugins.openstack;
 
 import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
 
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue.BuildableItem;
 import hudson.slaves.RetentionStrategy;
 import hudson.util.TimeUnit2;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.openstack.nova.model.Server;
 
+/*
+ * Terminates idle slaves according to their template. A slave is kept as
+ * long as queued work could run on it; otherwise it goes after the idle
+ * timeout, or the shorter one when the queue is empty. With a billing
+ * interval set, termination is further held back until the end of the
+ * period that has already been paid for.
+ */
 public class OpenStackRetentionStrategy extends RetentionStrategy<OpenStackComputer> {
 
+	/* Terminate within this many minutes of the end of a billing period. */
+	private static final long BILLING_MARGIN = TimeUnit2.MINUTES.toMillis(5);
+
 	@DataBoundConstructor
     public OpenStackRetentionStrategy() {
     }
@@ -16,10 +33,20 @@ public class OpenStackRetentionStrategy extends RetentionStrategy<OpenStackCompu
     @Override
 	public synchronized long check(OpenStackComputer c) {
         if(  c.isIdle() ) {
+        	OpenStackSlave slave = c.getNode();
+        	if( slave == null || hasDemand(slave) )
+        		return 1;
+
+        	SlaveTemplate template = slave.getTemplate();
+        	int idleMinutes = template != null ? template.getIdleMinutes() : SlaveTemplate.DEFAULT_IDLE_MINUTES;
+        	if( template != null && Hudson.getInstance().getQueue().getBuildableItems().isEmpty() )
+        		idleMinutes = template.getNoDemandIdleMinutes();
+
             final long idleMilliseconds = System.currentTimeMillis() - c.getIdleStartMilliseconds();
-            if( idleMilliseconds > TimeUnit2.MINUTES.toMillis(30) ) {
+            if( idleMilliseconds > TimeUnit2.MINUTES.toMillis(idleMinutes) &&
+            	(template == null || isEndOfBillingPeriod(c, template)) ) {
                 try {
-					c.getNode().terminate();
+					slave.terminate();
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				} catch (IOException e) {
@@ -29,4 +56,34 @@ public class OpenStackRetentionStrategy extends RetentionStrategy<OpenStackCompu
         }
         return 1;
     }
-}
\ No newline at end of file
+
+    /* Whether any buildable item is waiting for a node like this one. */
+    private static boolean hasDemand(OpenStackSlave slave) {
+    	List<BuildableItem> items = Hudson.getInstance().getQueue().getBuildableItems();
+    	for( BuildableItem item : items ) {
+    		Label label = item.getAssignedLabel();
+    		if( label == null ? slave.getMode() == Node.Mode.NORMAL : label.contains(slave) )
+    			return true;
+    	}
+    	return false;
+    }
+
+    private static boolean isEndOfBillingPeriod(OpenStackComputer c, SlaveTemplate template) {
+    	long period = TimeUnit2.MINUTES.toMillis(template.getBillingMinutes());
+    	if( period <= 0 )
+    		return true;
+
+    	long started = c.getConnectTime();
+    	try {
+    		Server server = c.getNode().getServer();
+    		if( server != null && server.getCreated() != null ) {
+    			Calendar created = server.getCreated();
+    			started = created.getTimeInMillis();
+    		}
+    	} catch( RuntimeException e ) {
+    		/* Fall back to the connect time. */
+    	}
+    	long used = (System.currentTimeMillis() - started) % period;
+    	return used >= period - Math.min(BILLING_MARGIN, period / 2);
+    }
+}
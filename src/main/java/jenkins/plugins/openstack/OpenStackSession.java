@@ -0,0 +1,371 @@
+package jenkins.plugins.openstack;
+
+import hudson.Util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.openstack.keystone.KeystoneClient;
+import org.openstack.keystone.api.Authenticate;
+import org.openstack.keystone.model.Access;
+import org.openstack.keystone.model.Authentication;
+import org.openstack.keystone.model.Authentication.PasswordCredentials;
+import org.openstack.keystone.utils.KeystoneUtils;
+import org.openstack.nova.NovaClient;
+import org.openstack.nova.NovaCommand;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/*
+ * A Keystone session for a single cloud. The token is cached until shortly
+ * before it expires, so that all callers share one NovaClient instead of
+ * authenticating for every request. The session of a cloud also refreshes
+ * it in the background; one made for a single check does not.
+ *
+ * Requests are also paced here: each kind of call goes through a token
+ * bucket, Nova's Retry-After is honoured on 413 and 429 responses, and
+ * identical reads that are already in flight share one request.
+ */
+public class OpenStackSession {
+
+	private static final Logger LOGGER = Logger.getLogger(OpenStackSession.class.getName());
+
+	/* Refresh this long before the token expires, or a quarter of its lifetime if that is shorter. */
+	private static final long REFRESH_MARGIN = TimeUnit.MINUTES.toMillis(5);
+
+	/* Assumed lifetime when Keystone does not report an expiry. */
+	private static final long DEFAULT_LIFETIME = TimeUnit.HOURS.toMillis(1);
+
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+	/* First wait before trying a failed refresh again; doubled up to a minute. */
+	private static final long REFRESH_RETRY = TimeUnit.SECONDS.toMillis(5);
+
+	/* Give up rather than wait longer than this for a rate limit to lift. */
+	private static final long MAX_RETRY_AFTER = MINUTE;
+	private static final int MAX_RETRIES = 5;
+
+	private final String authUrl;
+	private final String authUsername;
+	private final String authPassword;
+	private final String authTenant;
+	private final String regionName;
+	private final RequestLimiter limiter;
+
+	private volatile NovaClient client;
+	private volatile long expires;
+	private volatile long refreshAt;
+	private volatile long lastUsed;
+	private volatile long authenticated;
+	private volatile boolean keepFresh;
+
+	private final AtomicLong authCalls = new AtomicLong();
+	private final ConcurrentLinkedQueue<Long> recentAuthCalls = new ConcurrentLinkedQueue<Long>();
+	private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> throttled = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> coalesced = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, SettableFuture<Object>> inFlight = new ConcurrentHashMap<String, SettableFuture<Object>>();
+
+	public OpenStackSession(String authUrl,
+							String authUsername,
+							String authPassword,
+							String authTenant,
+							String regionName) {
+		this(authUrl, authUsername, authPassword, authTenant, regionName, null);
+	}
+
+	public OpenStackSession(String authUrl,
+							String authUsername,
+							String authPassword,
+							String authTenant,
+							String regionName,
+							String apiLimits) {
+		this.authUrl = authUrl;
+		this.authUsername = authUsername;
+		this.authPassword = authPassword;
+		this.authTenant = authTenant;
+		this.regionName = regionName;
+		this.limiter = new RequestLimiter(apiLimits);
+	}
+
+	/* Refresh the token in the background from now on; only for the session of a cloud. */
+	public void keepFresh() {
+		keepFresh = true;
+	}
+
+	public NovaClient getClient() {
+		lastUsed = System.currentTimeMillis();
+		NovaClient current = client;
+		if( current != null && lastUsed < refreshAt )
+			return current;
+		return authenticate(current);
+	}
+
+	/*
+	 * Runs a read-only command, joining an identical one that is already in
+	 * flight instead of sending it again. The key names what is being read,
+	 * e.g. "servers/detail" or "flavors/ID".
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> R read(String key, NovaCommand<R> command) {
+		SettableFuture<Object> fresh = SettableFuture.create();
+		SettableFuture<Object> existing = inFlight.putIfAbsent(key, fresh);
+		if( existing != null ) {
+			count(coalesced, kind(command));
+			return (R) await(existing);
+		}
+		try {
+			R result = execute(command);
+			fresh.set(result);
+			return result;
+		} catch( RuntimeException e ) {
+			fresh.setException(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, fresh);
+		}
+	}
+
+	private static Object await(SettableFuture<Object> future) {
+		boolean interrupted = false;
+		try {
+			while( true ) {
+				try {
+					return future.get();
+				} catch( InterruptedException e ) {
+					interrupted = true;
+				} catch( ExecutionException e ) {
+					if( e.getCause() instanceof RuntimeException )
+						throw (RuntimeException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			if( interrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Runs the command with the shared client, once the rate limit for its
+	 * kind allows. When Nova answers 413 or 429 with a Retry-After, that
+	 * kind of call is held back for as long as asked and the command is
+	 * retried; a 413 without one is a quota failure and is passed on.
+	 */
+	public <R> R execute(NovaCommand<R> command) {
+		String kind = kind(command);
+		count(calls, kind);
+		try {
+			for( int attempt = 0; ; attempt++ ) {
+				throttle(kind);
+				try {
+					return send(command);
+				} catch( WebApplicationException e ) {
+					long retryAfter = getRetryAfter(e);
+					if( retryAfter < 0 || retryAfter > MAX_RETRY_AFTER || attempt >= MAX_RETRIES )
+						throw e;
+					LOGGER.fine("Rate limited on " + kind + " by " + authUrl + ", retrying in " + retryAfter + "ms");
+					count(throttled, kind);
+					limiter.pause(kind, retryAfter);
+				}
+			}
+		} catch( RuntimeException e ) {
+			count(failures, kind);
+			throw e;
+		}
+	}
+
+	private static String kind(NovaCommand<?> command) {
+		return command.getClass().getSimpleName();
+	}
+
+	private void throttle(String kind) {
+		try {
+			limiter.acquire(kind);
+		} catch( InterruptedException e ) {
+			/* Let the caller see the interrupt; the request still goes out. */
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * A 401 means the token was revoked or expired early, so it is dropped
+	 * and the command is retried once with a fresh one.
+	 */
+	private <R> R send(NovaCommand<R> command) {
+		NovaClient current = getClient();
+		try {
+			return current.execute(command);
+		} catch( WebApplicationException e ) {
+			if( e.getResponse() == null || e.getResponse().getStatus() != 401 )
+				throw e;
+			LOGGER.fine("Token rejected for " + authUrl + ", re-authenticating");
+			return authenticate(current).execute(command);
+		}
+	}
+
+	/* How long Nova asked us to wait, in milliseconds, or -1 if it did not. */
+	private static long getRetryAfter(WebApplicationException e) {
+		if( e.getResponse() == null )
+			return -1;
+		int status = e.getResponse().getStatus();
+		if( status != 413 && status != 429 )
+			return -1;
+		String value = e.getResponse().getHeaderString("Retry-After");
+		if( value == null )
+			return -1;
+		value = value.trim();
+		try {
+			return TimeUnit.SECONDS.toMillis(Math.max(Long.parseLong(value), 0));
+		} catch( NumberFormatException nfe ) {
+			/* Not a number of seconds; try an HTTP date. */
+		}
+		try {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			return Math.max(format.parse(value).getTime() - System.currentTimeMillis(), 0);
+		} catch( ParseException pe ) {
+			return -1;
+		}
+	}
+
+	private static void count(ConcurrentMap<String, AtomicLong> counters, String kind) {
+		AtomicLong counter = counters.get(kind);
+		if( counter == null ) {
+			AtomicLong fresh = new AtomicLong();
+			counter = counters.putIfAbsent(kind, fresh);
+			if( counter == null )
+				counter = fresh;
+		}
+		counter.incrementAndGet();
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counters) {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for( Map.Entry<String, AtomicLong> e : counters.entrySet() )
+			r.put(e.getKey(), e.getValue().get());
+		return r;
+	}
+
+	/* Nova requests made, by command. */
+	public Map<String, Long> getCalls() {
+		return snapshot(calls);
+	}
+
+	/* Nova requests that failed, by command. */
+	public Map<String, Long> getFailures() {
+		return snapshot(failures);
+	}
+
+	/* Nova requests retried after a Retry-After, by command. */
+	public Map<String, Long> getThrottled() {
+		return snapshot(throttled);
+	}
+
+	/* Reads answered by an identical request already in flight, by command. */
+	public Map<String, Long> getCoalesced() {
+		return snapshot(coalesced);
+	}
+
+	/* Nova requests held back by the local rate limit, by command. */
+	public Map<String, Long> getDelayed() {
+		return limiter.getDelayed();
+	}
+
+	/*
+	 * Authenticates unless another thread has already replaced the given
+	 * client while we were waiting for the lock.
+	 */
+	private synchronized NovaClient authenticate(NovaClient stale) {
+		if( client != null && client != stale )
+			return client;
+
+		KeystoneClient keystone = new KeystoneClient(authUrl);
+		Authentication authentication = new Authentication();
+		PasswordCredentials passwordCredentials = new PasswordCredentials();
+		passwordCredentials.setUsername(authUsername);
+		passwordCredentials.setPassword(authPassword);
+		authentication.setPasswordCredentials(passwordCredentials);
+		authentication.setTenantName(authTenant);
+		countAuthCall();
+		Access access = keystone.execute(new Authenticate(authentication));
+
+		long now = System.currentTimeMillis();
+		authenticated = now;
+		Calendar expiry = access.getToken().getExpires();
+		expires = expiry != null ? expiry.getTimeInMillis() : now + DEFAULT_LIFETIME;
+		refreshAt = expires - Math.min(REFRESH_MARGIN, Math.max(expires - now, 0) / 4);
+		client = new NovaClient(
+					KeystoneUtils.findEndpointURL(
+							access.getServiceCatalog(),
+							"compute", Util.fixEmptyAndTrim(regionName), "public"),
+					access.getToken().getId());
+		if( keepFresh )
+			scheduleRefresh(refreshAt > now ? refreshAt - now : MINUTE, REFRESH_RETRY);
+		return client;
+	}
+
+	/*
+	 * Refresh ahead of expiry so callers never wait on Keystone, but only
+	 * if the token was used since it was issued; the session of a cloud
+	 * that has since been reconfigured simply lapses. A failed refresh is
+	 * tried again, backing off, until one succeeds or the token is replaced.
+	 */
+	private void scheduleRefresh(long delay, final long backoff) {
+		final NovaClient current = client;
+		OpenStackExecutors.timer().schedule(new Runnable() {
+			public void run() {
+				if( client != current )
+					return;
+				if( lastUsed < authenticated )
+					return;
+				try {
+					authenticate(current);
+				} catch( RuntimeException e ) {
+					LOGGER.log(Level.WARNING, "Failed to refresh token for " + authUrl + ", retrying in " + backoff + "ms", e);
+					scheduleRefresh(backoff, Math.min(backoff * 2, MINUTE));
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void countAuthCall() {
+		long now = System.currentTimeMillis();
+		authCalls.incrementAndGet();
+		recentAuthCalls.add(now);
+		pruneAuthCalls(now);
+	}
+
+	private void pruneAuthCalls(long now) {
+		Iterator<Long> it = recentAuthCalls.iterator();
+		while( it.hasNext() ) {
+			if( now - it.next() <= MINUTE )
+				break;
+			it.remove();
+		}
+	}
+
+	public long getAuthCalls() {
+		return authCalls.get();
+	}
+
+	public int getAuthCallsPerMinute() {
+		pruneAuthCalls(System.currentTimeMillis());
+		return recentAuthCalls.size();
+	}
+}
@@ -1,6 +1,7 @@
 package jenkins.plugins.openstack;
 
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.model.Descriptor.FormException;
 import hudson.os.windows.ManagedWindowsServiceLauncher;
@@ -12,18 +13,41 @@ import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
-import org.openstack.nova.NovaClient;
 import org.openstack.nova.api.ServersCore;
 import org.openstack.nova.model.Server;
 import org.openstack.nova.model.Server.Addresses;
 import org.openstack.nova.model.Server.Addresses.Address;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 public final class OpenStackSlave extends AbstractCloudSlave {
 
+	private static final Logger LOGGER = Logger.getLogger(OpenStackSlave.class.getName());
+
+	private static final int SSH_PORT = 22;
+	private static final int SMB_PORT = 445;
+	private static final long PROBE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	/* A server still building after this long is taken to be stuck. */
+	private static final long BUILD_TIMEOUT = TimeUnit.MINUTES.toMillis(15);
+
+	/* A server not shut off this long after a stop is taken to be stuck. */
+	private static final long STOP_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
 	public final String cloudId;
 	public final String templateId;
 	public final String serverId;
@@ -31,7 +55,9 @@ public final class OpenStackSlave extends AbstractCloudSlave {
 	
 	private transient SlaveTemplate template;
     private transient OpenStackCloud parent;
-    private transient Server server;
+    private transient volatile Server server;
+    private transient volatile boolean loaded;
+    private transient volatile ConsoleWatcher console;
 
     @DataBoundConstructor
     public OpenStackSlave(String cloudId,
@@ -40,7 +66,7 @@ public final class OpenStackSlave extends AbstractCloudSlave {
     					  boolean stopOnTerminate) throws IOException, FormException {
     	this(OpenStackCloud.get(cloudId).getTemplate(templateId),
     		 OpenStackCloud.get(cloudId),
-    		 OpenStackCloud.get(cloudId).connect().execute(ServersCore.showServer(serverId)));
+    		 OpenStackCloud.get(cloudId).read("servers/" + serverId, ServersCore.showServer(serverId)));
     }
 	
     public OpenStackSlave(SlaveTemplate template,
@@ -57,7 +83,7 @@ public final class OpenStackSlave extends AbstractCloudSlave {
 			  template.description,
 			  template.remoteFS,
 			  template.getNumExecutors(),
-			  template.stopOnTerminate ? Mode.EXCLUSIVE : Mode.NORMAL,
+			  template.getMode(),
 			  template.labels,
 			  new OpenStackComputerLauncher(),
 			  new OpenStackRetentionStrategy(),
@@ -68,13 +94,17 @@ public final class OpenStackSlave extends AbstractCloudSlave {
 		this.serverId = server.getId();
 		this.stopOnTerminate = stopOnTerminate;
 		readResolve();
+		setServer(server);
 	}
     
+	/*
+	 * Deserialization must not touch the network: the server is loaded on
+	 * first use, or in bulk by ServerStateLoader once Jenkins has started.
+	 */
 	protected Object readResolve() {
     	super.readResolve();
 		this.setLauncher(new OpenStackComputerLauncher());
 		this.setRetentionStrategy(new OpenStackRetentionStrategy());
-		update();
     	return this;
 	}
 	
@@ -88,42 +118,234 @@ public final class OpenStackSlave extends AbstractCloudSlave {
         return new OpenStackComputer(this);
     }
 
-    protected void update() {
+    protected void resolve() {
     	/* Reload the cloud pointer. */
     	parent = OpenStackCloud.get(cloudId);
     	
     	/* Reload the template if required. */
-    	template = parent.getTemplate(templateId);
-    	
-    	/* Update the server. */
-    	NovaClient client = parent.connect();
-    	server = client.execute(ServersCore.showServer(serverId));
+    	template = parent != null ? parent.getTemplate(templateId) : null;
+    }
+
+    public SlaveTemplate getTemplate() {
+    	resolve();
+    	return template;
+    }
+
+    /*
+     * Takes the server from the cloud's state map rather than asking Nova.
+     * A server the map has not seen yet keeps the state it was created or
+     * watched with; deletions reach the slave through the map itself.
+     */
+    protected void update() {
+    	resolve();
+    	ServerStateMap states = parent.getServerStates();
+    	Server current = states.get(serverId);
+    	if( current != null )
+    		refresh(current);
+    	else if( !loaded && states.isComplete() )
+    		setServer(null);
+    }
+
+    /*
+     * Takes a state from the map unless the slave holds a newer one, e.g.
+     * the ACTIVE server its watch ended with. A server already gone stays
+     * gone. Says whether the state was taken.
+     */
+    boolean refresh(Server current) {
+    	Server held = server;
+    	if( loaded && (held == null || !ServerStateMap.isNewer(current, held)) )
+    		return false;
+    	setServer(current);
+    	return true;
+    }
+
+    void setServer(Server server) {
+    	this.server = server;
+    	this.loaded = true;
     }
 
-    protected synchronized void waitForActive() throws InterruptedException {
-    	do {
+    public Server getServer() {
+    	if( !loaded )
     		update();
-    		wait(1000);
-    	} while( server != null &&
-    			 server.getStatus() != null &&
-    			 !server.getStatus().equals("ACTIVE") &&
-    			 !server.getStatus().equals("ERROR") );
+    	return server;
+    }
+
+    /* The watcher tailing the console while the slave is provisioned, if any. */
+    public ConsoleWatcher getConsole() {
+    	return console;
+    }
+
+    void setConsole(ConsoleWatcher console) {
+    	this.console = console;
+    }
+
+    public boolean isGone() {
+    	return loaded && server == null;
+    }
+
+    /*
+     * Waits for the server to leave BUILD. Afterwards the server is ACTIVE,
+     * or in ERROR, or still building once the timeout ran out, or null if
+     * it disappeared. The outcome counts towards the health of its zone.
+     */
+    protected void waitForActive() throws InterruptedException {
+    	try {
+    		watchActive().get();
+    	} catch( ExecutionException e ) {
+    		/* watchActive() records failures rather than failing. */
+    	}
+    }
+
+    /*
+     * As waitForActive(), without holding a thread: the returned future
+     * completes with the outcome once the poller has seen the server leave
+     * BUILD, or once the timeout runs out.
+     */
+    protected ListenableFuture<Server> watchActive() {
+    	resolve();
+    	final SettableFuture<Server> result = SettableFuture.create();
+    	if( server != null && "ACTIVE".equals(server.getStatus()) ) {
+    		result.set(server);
+    		return result;
+    	}
+    	final ProvisioningMetrics metrics = parent.getMetrics();
+    	final ZoneBalancer zones = parent.getZones();
+    	final ServerStatusPoller poller = parent.getPoller();
+    	final long started = System.currentTimeMillis();
+    	final AtomicReference<String> failure = new AtomicReference<String>();
+    	final ListenableFuture<Server> watch = poller.watch(serverId);
+    	final ScheduledFuture<?> timeout = OpenStackExecutors.timer().schedule(new Runnable() {
+    		public void run() {
+    			if( !watch.isDone() && failure.compareAndSet(null, "build-timeout") )
+    				poller.cancel(serverId);
+    		}
+    	}, BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+
+    	/* A console showing a failure settles it without waiting for the status. */
+    	final ConsoleWatcher console = this.console;
+    	if( console != null ) {
+    		console.whenSettled().addListener(new Runnable() {
+    			public void run() {
+    				if( console.getOutcome() == ConsoleWatcher.Outcome.FAILED &&
+    					!watch.isDone() && failure.compareAndSet(null, "console-failure") )
+    					poller.cancel(serverId);
+    			}
+    		}, MoreExecutors.sameThreadExecutor());
+    	}
+
+    	watch.addListener(new Runnable() {
+    		public void run() {
+    			timeout.cancel(false);
+    			try {
+    				server = watch.get();
+    				long elapsed = System.currentTimeMillis() - started;
+    				metrics.record(templateId, ProvisioningMetrics.ACTIVE, elapsed);
+    				if( "ERROR".equals(server.getStatus()) ) {
+    					metrics.error(templateId, "error-state");
+    					metrics.bootFailed();
+    					zones.failed(serverId);
+    				} else {
+    					metrics.bootSucceeded(elapsed);
+    					zones.succeeded(serverId);
+    				}
+    			} catch( CancellationException e ) {
+    				if( failure.get() != null ) {
+    					metrics.error(templateId, failure.get());
+    					metrics.bootFailed();
+    					zones.failed(serverId);
+    				} else {
+    					/* Terminated while booting. */
+    					zones.forget(serverId);
+    					server = null;
+    				}
+    			} catch( ExecutionException e ) {
+    				metrics.error(templateId, "lost");
+    				metrics.bootFailed();
+    				zones.forget(serverId);
+    				server = null;
+    			} catch( InterruptedException e ) {
+    				/* Cannot happen, the watch is done. */
+    				Thread.currentThread().interrupt();
+    			}
+    			result.set(server);
+    		}
+    	}, MoreExecutors.sameThreadExecutor());
+    	return result;
     }
     
+	/*
+	 * Recycling templates rebuild the server from the image and hand it to
+	 * the next provision, skipping scheduling and port setup. Stop-on-terminate
+	 * slaves keep their server, stopped, so that a later provision can start
+	 * it again with its workspace intact. Servers that are broken, or whose
+	 * template is gone, are deleted regardless.
+	 */
 	@Override
-	protected synchronized void _terminate(TaskListener listener)
+	protected void _terminate(TaskListener listener)
 			throws IOException, InterruptedException {
-		update();
-		if( parent != null && server != null ) {
-			NovaClient client = parent.connect();
-			client.execute(ServersCore.deleteServer(server.getId()));
-			server = null;
+		resolve();
+		if( parent != null ) {
+			parent.getPoller().cancel(serverId);
+			Server current = server;
+			boolean broken = isGone() || (current != null && "ERROR".equals(current.getStatus()));
+			/* A JNLP agent is only started on the first boot, so its server cannot be reused. */
+			boolean reusable = template != null && !template.jnlp && !broken;
+			if( reusable && template.rebuildOnTerminate )
+				recycle(parent, template);
+			else if( reusable && stopOnTerminate )
+				stop(parent, template);
+			else
+				TerminationQueue.get(cloudId).enqueue(serverId, templateId);
 		}
-		notifyAll();
+		server = null;
+	}
+
+	private void stop(final OpenStackCloud cloud, final SlaveTemplate template) {
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				ListenableFuture<Server> watch = null;
+				try {
+					cloud.execute(ServerActions.stop(serverId));
+					/* Only a server that is SHUTOFF can be started again. */
+					watch = cloud.getPoller().watch(serverId, "SHUTOFF");
+					Server stopped = watch.get(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+					if( !"SHUTOFF".equals(stopped.getStatus()) )
+						throw new IllegalStateException("Server " + serverId + " is " + stopped.getStatus() + " after stop");
+					template.getPool().stopped(serverId);
+				} catch( Exception e ) {
+					if( watch != null && !watch.isDone() )
+						cloud.getPoller().cancel(serverId);
+					LOGGER.log(Level.WARNING, "Failed to stop server " + serverId + ", deleting it", e);
+					cloud.getMetrics().error(templateId, "stop");
+					TerminationQueue.get(cloudId).enqueue(serverId, templateId);
+				}
+			}
+		});
+	}
+
+	private void recycle(final OpenStackCloud cloud, final SlaveTemplate template) {
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				long started = System.currentTimeMillis();
+				try {
+					cloud.execute(ServerActions.rebuild(serverId, cloud.getResources().getImageRef(template.imageId)));
+					Server rebuilt = cloud.getPoller().watch(serverId).get();
+					if( !"ACTIVE".equals(rebuilt.getStatus()) )
+						throw new IllegalStateException("Server " + serverId + " is " + rebuilt.getStatus() + " after rebuild");
+					cloud.getServerStates().put(rebuilt);
+					cloud.getMetrics().record(templateId, ProvisioningMetrics.REBUILD, System.currentTimeMillis() - started);
+					template.getPool().offer(rebuilt);
+				} catch( Exception e ) {
+					LOGGER.log(Level.WARNING, "Failed to rebuild server " + serverId + ", deleting it", e);
+					cloud.getMetrics().error(templateId, "rebuild");
+					TerminationQueue.get(cloudId).enqueue(serverId, templateId);
+				}
+			}
+		});
 	}
 
 	public boolean isUnix() {
-		update();
+		resolve();
 		return template.isUnix;
 	}
 	
@@ -139,37 +361,76 @@ public final class OpenStackSlave extends AbstractCloudSlave {
 		 * we assume that Java is installed on the images when they come
 		 * up.
 		 */
+		/* JNLP servers start their own agent, see JnlpBootstrap. */
+		if( template != null && template.jnlp ) {
+			listener.getLogger().println("Waiting for the agent on " + serverId + " to connect over JNLP");
+			return;
+		}
+
+		ProvisioningMetrics metrics = parent.getMetrics();
+		metrics.launchStarted();
+		try {
+			launch(computer, listener, metrics);
+		} finally {
+			metrics.launchFinished();
+		}
+	}
+
+	private void launch(SlaveComputer computer, TaskListener listener, ProvisioningMetrics metrics)
+			throws InterruptedException {
+		long started = System.currentTimeMillis();
+		boolean unix = computer.isUnix().booleanValue();
 		Addresses addresses = server.getAddresses();
-		for( List<Address> network : addresses.getAddresses().values() ) {
-			for( Address addr : network ) {
-				ComputerLauncher launcher;
-				
-				if( computer.isUnix().booleanValue() ) {
-					launcher = new SSHLauncher(
-								addr.getAddr(), 22,
-								template.remoteUser,
-								template.remotePassword, /* password */
-								template.privateKey, /* private key */
-								null, null, null, /* JDK installation */
-								null, /* prefix */
-								null); /* suffix */
-				} else {
-					launcher =
-						new ManagedWindowsServiceLauncher(
-								template.remoteUser,
-								template.remotePassword,
-								addr.getAddr());
-				}
+		List<String> candidates = new ArrayList<String>();
+		for( List<Address> network : addresses.getAddresses().values() )
+			for( Address addr : network )
+				candidates.add(addr.getAddr());
 
-				try {
-					launcher.launch(computer, listener);
-				} catch (IOException e) {
-					continue;
-				}
-				if( computer.getChannel() != null )
-					return;
+		/* Launch against whichever address answers first. */
+		AddressProber.Reachable reachable =
+			AddressProber.probe(addresses, unix ? SSH_PORT : SMB_PORT,
+								template.getPreferredNetwork(), PROBE_TIMEOUT);
+		if( reachable != null ) {
+			metrics.record(templateId, ProvisioningMetrics.REACHABLE, System.currentTimeMillis() - started);
+			template.setPreferredNetwork(reachable.network);
+			candidates.remove(reachable.address);
+			candidates.add(0, reachable.address);
+		} else {
+			metrics.error(templateId, "probe-timeout");
+			listener.getLogger().println("No address of " + serverId + " is reachable yet");
+		}
+
+		for( String addr : candidates ) {
+			ComputerLauncher launcher;
+			
+			if( unix ) {
+				launcher = new SSHLauncher(
+							addr, SSH_PORT,
+							template.remoteUser,
+							template.remotePassword, /* password */
+							template.privateKey, /* private key */
+							null, null, null, /* JDK installation */
+							null, /* prefix */
+							null); /* suffix */
+			} else {
+				launcher =
+					new ManagedWindowsServiceLauncher(
+							template.remoteUser,
+							template.remotePassword,
+							addr);
+			}
+
+			try {
+				launcher.launch(computer, listener);
+			} catch (IOException e) {
+				continue;
+			}
+			if( computer.getChannel() != null ) {
+				metrics.record(templateId, ProvisioningMetrics.ONLINE, System.currentTimeMillis() - started);
+				return;
 			}
 		}
+		metrics.error(templateId, "launch");
 	}
 
     @Extension
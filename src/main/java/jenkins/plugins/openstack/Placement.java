@@ -0,0 +1,65 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Spreads the workload for a label across the OpenStack clouds (or regions)
+ * that can serve it. Jenkins asks each cloud in turn for whatever the
+ * earlier ones did not take, so each cloud takes its share of what is left
+ * among itself and the clouds after it, and the last one takes the rest.
+ * Shares are weighted by recent boot latency, recent failure rate and
+ * remaining capacity, so a slow, failing or full region passes work on to
+ * the others without any configuration.
+ */
+public final class Placement {
+
+	/* Even a cloud that keeps failing gets the odd boot, to notice recovery. */
+	private static final double MIN_HEALTH = 0.05;
+
+	private Placement() {
+	}
+
+	/* How much of the workload the given cloud should provision. */
+	public static int share(OpenStackCloud self, Label label, int workload) {
+		List<OpenStackCloud> remaining = new ArrayList<OpenStackCloud>();
+		boolean seen = false;
+		for( Cloud cloud : Hudson.getInstance().clouds ) {
+			if( cloud == self )
+				seen = true;
+			if( seen && cloud instanceof OpenStackCloud && cloud.canProvision(label) )
+				remaining.add((OpenStackCloud) cloud);
+		}
+		if( remaining.size() <= 1 || workload <= 0 )
+			return workload;
+
+		long fastest = -1;
+		for( OpenStackCloud cloud : remaining ) {
+			long latency = cloud.getMetrics().getRecentBootLatency();
+			if( latency > 0 && (fastest < 0 || latency < fastest) )
+				fastest = latency;
+		}
+
+		double total = 0;
+		for( OpenStackCloud cloud : remaining )
+			total += score(cloud, label, workload, fastest);
+		if( total <= 0 )
+			return workload;
+		return (int) Math.ceil(workload * score(self, label, workload, fastest) / total);
+	}
+
+	static double score(OpenStackCloud cloud, Label label, int workload, long fastest) {
+		int capacity = cloud.getRemainingCapacity(label);
+		if( capacity <= 0 )
+			return 0;
+		ProvisioningMetrics metrics = cloud.getMetrics();
+		double health = Math.max(1 - metrics.getRecentFailureRate(), MIN_HEALTH);
+		long latency = metrics.getRecentBootLatency();
+		double speed = latency <= 0 || fastest <= 0 ? 1 : (double) fastest / latency;
+		return health * speed * Math.min(capacity, workload);
+	}
+}
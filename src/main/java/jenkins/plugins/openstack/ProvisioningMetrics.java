@@ -0,0 +1,238 @@
+package jenkins.plugins.openstack;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.json.JSONObject;
+
+/*
+ * Where provisioning time goes, per cloud and template. Recording is a
+ * handful of atomic increments, so it is safe to leave on the hot path;
+ * everything else is computed when the metrics are read. Kept per cloud ID
+ * so that saving the configuration does not reset them.
+ *
+ * Besides the cumulative histograms, recent boot latency and failure rate
+ * are kept as moving averages, so that placement can react to a cloud
+ * that has just become slow or started failing.
+ */
+public class ProvisioningMetrics {
+
+	/* Phases of a slave's life, in order. */
+	public static final String CREATE = "create";
+	public static final String ACTIVE = "active";
+	public static final String REACHABLE = "reachable";
+	public static final String ONLINE = "online";
+	public static final String TERMINATE = "terminate";
+
+	/* From ACTIVE until the console matched the template's ready pattern. */
+	public static final String READY = "ready";
+
+	/* Rebuilding a recycled server until it is ACTIVE again. */
+	public static final String REBUILD = "rebuild";
+
+	private static final ConcurrentMap<String, ProvisioningMetrics> metrics = new ConcurrentHashMap<String, ProvisioningMetrics>();
+
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicInteger launching = new AtomicInteger();
+	private final MovingAverage bootLatency = new MovingAverage();
+	private final MovingAverage bootFailures = new MovingAverage();
+
+	public static ProvisioningMetrics get(String cloudId) {
+		String key = String.valueOf(cloudId);
+		ProvisioningMetrics m = metrics.get(key);
+		if( m == null ) {
+			ProvisioningMetrics fresh = new ProvisioningMetrics();
+			m = metrics.putIfAbsent(key, fresh);
+			if( m == null )
+				m = fresh;
+		}
+		return m;
+	}
+
+	public void record(String templateId, String phase, long millis) {
+		histogram(templateId + "/" + phase).record(millis);
+	}
+
+	/* Counts a failure, e.g. "boot", "error-state" or "probe-timeout". */
+	public void error(String templateId, String kind) {
+		String key = templateId + "/" + kind;
+		AtomicLong counter = errors.get(key);
+		if( counter == null ) {
+			AtomicLong fresh = new AtomicLong();
+			counter = errors.putIfAbsent(key, fresh);
+			if( counter == null )
+				counter = fresh;
+		}
+		counter.incrementAndGet();
+	}
+
+	/* A server reached ACTIVE this long after it was created. */
+	public void bootSucceeded(long millis) {
+		bootLatency.update(millis);
+		bootFailures.update(0);
+	}
+
+	/* A boot failed, or the server ended in ERROR or disappeared. */
+	public void bootFailed() {
+		bootFailures.update(1);
+	}
+
+	/* Recent time to ACTIVE in milliseconds, or -1 before any boot. */
+	public long getRecentBootLatency() {
+		return (long) bootLatency.get(-1);
+	}
+
+	/* Recent share of boots that failed, between 0 and 1. */
+	public double getRecentFailureRate() {
+		return bootFailures.get(0);
+	}
+
+	public void launchStarted() {
+		launching.incrementAndGet();
+	}
+
+	public void launchFinished() {
+		launching.decrementAndGet();
+	}
+
+	public int getLaunching() {
+		return launching.get();
+	}
+
+	private Histogram histogram(String key) {
+		Histogram h = histograms.get(key);
+		if( h == null ) {
+			Histogram fresh = new Histogram();
+			h = histograms.putIfAbsent(key, fresh);
+			if( h == null )
+				h = fresh;
+		}
+		return h;
+	}
+
+	/* Keyed by template and phase, sorted for display. */
+	public Map<String, Histogram> getHistograms() {
+		return new TreeMap<String, Histogram>(histograms);
+	}
+
+	public Map<String, Long> getErrors() {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for( Map.Entry<String, AtomicLong> e : errors.entrySet() )
+			r.put(e.getKey(), e.getValue().get());
+		return r;
+	}
+
+	public JSONObject toJSON() {
+		JSONObject latencies = new JSONObject();
+		for( Map.Entry<String, Histogram> e : getHistograms().entrySet() )
+			latencies.put(e.getKey(), e.getValue().toJSON());
+		JSONObject r = new JSONObject();
+		r.put("latency", latencies);
+		r.put("errors", getErrors());
+		r.put("launching", getLaunching());
+		r.put("recentBootLatency", getRecentBootLatency());
+		r.put("recentFailureRate", getRecentFailureRate());
+		return r;
+	}
+
+	/* An exponentially weighted moving average over recent samples. */
+	private static final class MovingAverage {
+
+		private static final double ALPHA = 0.2;
+
+		private double value;
+		private boolean empty = true;
+
+		synchronized void update(double sample) {
+			value = empty ? sample : value + ALPHA * (sample - value);
+			empty = false;
+		}
+
+		synchronized double get(double otherwise) {
+			return empty ? otherwise : value;
+		}
+	}
+
+	/* A latency histogram over fixed, roughly logarithmic buckets. */
+	public static final class Histogram {
+
+		private static final long[] BOUNDS = {
+			100, 250, 500, 1000, 2500, 5000, 10000, 20000, 30000,
+			60000, 120000, 300000, 600000, 1200000, Long.MAX_VALUE
+		};
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long millis) {
+			int i = 0;
+			while( millis > BOUNDS[i] )
+				i++;
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			sum.addAndGet(millis);
+			long current;
+			while( millis > (current = max.get()) && !max.compareAndSet(current, millis) )
+				;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : sum.get() / n;
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/* The upper bound of the bucket holding the given percentile. */
+		public long getPercentile(int percentile) {
+			long n = count.get();
+			if( n == 0 )
+				return 0;
+			long rank = (n * percentile + 99) / 100;
+			long seen = 0;
+			for( int i = 0; i < BOUNDS.length; i++ ) {
+				seen += buckets.get(i);
+				if( seen >= rank )
+					return Math.min(BOUNDS[i], max.get());
+			}
+			return max.get();
+		}
+
+		public long getP50() {
+			return getPercentile(50);
+		}
+
+		public long getP95() {
+			return getPercentile(95);
+		}
+
+		public long getP99() {
+			return getPercentile(99);
+		}
+
+		JSONObject toJSON() {
+			JSONObject r = new JSONObject();
+			r.put("count", getCount());
+			r.put("mean", getMean());
+			r.put("p50", getP50());
+			r.put("p95", getP95());
+			r.put("p99", getP99());
+			r.put("max", getMax());
+			return r;
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.nova.model.Server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/*
+ * Runs the planned nodes of a cloud through boot, build and launch without
+ * a thread per node: each stage hands over to the next from a callback, and
+ * only short API calls and node registration borrow a remoting thread. Only
+ * so many boots run at once; the rest wait in order of template priority,
+ * then arrival. Standby servers are already up and skip the queue. The
+ * scheduler outlives reconfiguration, so the cap holds across it.
+ */
+public class ProvisioningScheduler {
+
+	private static final Logger LOGGER = Logger.getLogger(ProvisioningScheduler.class.getName());
+
+	public static final int DEFAULT_MAX_CONCURRENT = 10;
+
+	/* How often to check on launches, which Jenkins only offers a plain Future for. */
+	private static final long LAUNCH_POLL = TimeUnit.SECONDS.toMillis(1);
+
+	/* How long a JNLP server has to connect back once it is up. */
+	private static final long AGENT_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	private static final ConcurrentMap<String, ProvisioningScheduler> schedulers = new ConcurrentHashMap<String, ProvisioningScheduler>();
+
+	private static final class Job implements Comparable<Job> {
+		final SlaveTemplate template;
+		final String stopped;
+		final int priority;
+		final long sequence;
+		final SettableFuture<Node> result = SettableFuture.create();
+
+		Job(SlaveTemplate template, String stopped, long sequence) {
+			this.template = template;
+			this.stopped = stopped;
+			this.priority = template.getPriority();
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Job other) {
+			if( priority != other.priority )
+				return priority > other.priority ? -1 : 1;
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	private final String cloudId;
+
+	/* Guarded by this. */
+	private final PriorityQueue<Job> queue = new PriorityQueue<Job>();
+	private int running;
+	private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+	private long sequence;
+
+	private final AtomicInteger connecting = new AtomicInteger();
+
+	private ProvisioningScheduler(String cloudId) {
+		this.cloudId = cloudId;
+	}
+
+	public static ProvisioningScheduler get(String cloudId) {
+		ProvisioningScheduler scheduler = schedulers.get(cloudId);
+		if( scheduler == null ) {
+			ProvisioningScheduler fresh = new ProvisioningScheduler(cloudId);
+			scheduler = schedulers.putIfAbsent(cloudId, fresh);
+			if( scheduler == null )
+				scheduler = fresh;
+		}
+		return scheduler;
+	}
+
+	public void setMaxConcurrent(int maxConcurrent) {
+		synchronized( this ) {
+			this.maxConcurrent = Math.max(maxConcurrent, 1);
+		}
+		dispatch();
+	}
+
+	/* Attaches a standby server, which is already up. */
+	public Future<Node> attach(SlaveTemplate template, Server standby) {
+		SettableFuture<Node> result = SettableFuture.create();
+		try {
+			launch(template.attach(standby), result);
+		} catch( Exception e ) {
+			result.setException(e);
+		}
+		return result;
+	}
+
+	/* Queues a boot, or the start of a stopped server if one is given. */
+	public Future<Node> submit(SlaveTemplate template, String stopped) {
+		Job job;
+		synchronized( this ) {
+			job = new Job(template, stopped, sequence++);
+			queue.add(job);
+		}
+		dispatch();
+		return job.result;
+	}
+
+	/* Starts queued jobs, up to the concurrency limit. */
+	private void dispatch() {
+		List<Job> started = new ArrayList<Job>();
+		synchronized( this ) {
+			while( running < maxConcurrent && !queue.isEmpty() ) {
+				started.add(queue.poll());
+				running++;
+			}
+		}
+		for( Job job : started )
+			start(job);
+	}
+
+	private void start(final Job job) {
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				final ListenableFuture<OpenStackSlave> built;
+				try {
+					if( job.stopped != null )
+						built = job.template.resumeAsync(job.stopped);
+					else
+						built = job.template.provisionAsync();
+				} catch( RuntimeException e ) {
+					finished();
+					job.result.setException(e);
+					return;
+				}
+				built.addListener(new Runnable() {
+					public void run() {
+						finished();
+						try {
+							launch(built.get(), job.result);
+						} catch( ExecutionException e ) {
+							job.result.setException(e.getCause());
+						} catch( InterruptedException e ) {
+							/* Cannot happen, the build is done. */
+							job.result.setException(e);
+						}
+					}
+				}, MoreExecutors.sameThreadExecutor());
+			}
+		});
+	}
+
+	/* The server is up, or gone for good; either way the boot slot is free. */
+	private void finished() {
+		synchronized( this ) {
+			running--;
+		}
+		dispatch();
+	}
+
+	/*
+	 * Registers the slave and completes the node once its launch is over.
+	 * JNLP slaves are complete once their agent has connected.
+	 */
+	private void launch(final OpenStackSlave slave, final SettableFuture<Node> result) {
+		connecting.incrementAndGet();
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				try {
+					Hudson.getInstance().addNode(slave);
+					SlaveTemplate template = slave.getTemplate();
+					if( template != null && template.jnlp )
+						awaitAgent(slave, System.currentTimeMillis(), result);
+					else
+						awaitLaunch(slave, slave.toComputer().connect(false), result);
+				} catch( Exception e ) {
+					connecting.decrementAndGet();
+					stopConsole(slave);
+					result.setException(e);
+				}
+			}
+		});
+	}
+
+	private void awaitLaunch(final OpenStackSlave slave, final Future<?> connected, final SettableFuture<Node> result) {
+		if( consoleFailed(slave, result) )
+			return;
+		if( !connected.isDone() ) {
+			OpenStackExecutors.timer().schedule(new Runnable() {
+				public void run() {
+					awaitLaunch(slave, connected, result);
+				}
+			}, LAUNCH_POLL, TimeUnit.MILLISECONDS);
+			return;
+		}
+		connecting.decrementAndGet();
+		stopConsole(slave);
+		try {
+			connected.get();
+			result.set(slave);
+		} catch( ExecutionException e ) {
+			LOGGER.log(Level.WARNING, "Failed to launch " + slave.getNodeName() + " of cloud " + cloudId, e.getCause());
+			result.setException(e.getCause());
+		} catch( Exception e ) {
+			result.setException(e);
+		}
+	}
+
+	private void awaitAgent(final OpenStackSlave slave, final long started, final SettableFuture<Node> result) {
+		if( consoleFailed(slave, result) )
+			return;
+		Computer c = slave.toComputer();
+		long elapsed = System.currentTimeMillis() - started;
+		if( c != null && c.getChannel() != null ) {
+			connecting.decrementAndGet();
+			stopConsole(slave);
+			ProvisioningMetrics.get(cloudId).record(slave.templateId, ProvisioningMetrics.ONLINE, elapsed);
+			result.set(slave);
+			return;
+		}
+		if( c == null || elapsed > AGENT_TIMEOUT ) {
+			connecting.decrementAndGet();
+			stopConsole(slave);
+			ProvisioningMetrics.get(cloudId).error(slave.templateId, "agent-timeout");
+			result.setException(new IOException("The agent of " + slave.getNodeName() + " did not connect"));
+			return;
+		}
+		OpenStackExecutors.timer().schedule(new Runnable() {
+			public void run() {
+				awaitAgent(slave, started, result);
+			}
+		}, LAUNCH_POLL, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Templates with only a failure pattern hand their servers over at
+	 * ACTIVE, so the console is still watched while the slave launches. A
+	 * failure there gives up on the slave rather than wait out the launch.
+	 */
+	private boolean consoleFailed(final OpenStackSlave slave, SettableFuture<Node> result) {
+		ConsoleWatcher console = slave.getConsole();
+		if( console == null || console.getOutcome() != ConsoleWatcher.Outcome.FAILED )
+			return false;
+		connecting.decrementAndGet();
+		ProvisioningMetrics.get(cloudId).error(slave.templateId, "console-failure");
+		result.setException(new IOException("Console of " + slave.getNodeName() + " shows a failure: " + console.getMatchedLine()));
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				try {
+					slave.terminate();
+				} catch( Exception e ) {
+					LOGGER.log(Level.WARNING, "Failed to terminate " + slave.getNodeName(), e);
+				}
+			}
+		});
+		return true;
+	}
+
+	private static void stopConsole(OpenStackSlave slave) {
+		ConsoleWatcher console = slave.getConsole();
+		if( console != null )
+			console.stop();
+	}
+
+	/* Boots waiting for a slot. */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/* Boots holding a slot, from the create request until the server is up. */
+	public synchronized int getInFlight() {
+		return running;
+	}
+
+	/* Slaves whose server is up, waiting for their agent to connect. */
+	public int getConnecting() {
+		return connecting.get();
+	}
+
+	public synchronized int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+}
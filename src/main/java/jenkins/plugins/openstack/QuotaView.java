@@ -0,0 +1,235 @@
+package jenkins.plugins.openstack;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+
+import net.sf.json.JSONObject;
+
+import org.openstack.nova.NovaCommand;
+import org.openstack.nova.model.Flavor;
+
+/*
+ * The tenant's instance, core and RAM quota as last reported by the limits
+ * API, adjusted locally for every boot and delete since, so that
+ * provisioning only plans servers that Nova will accept. Boots that are
+ * planned but not yet created are held separately, as Nova does not count
+ * them until the create request arrives. The limits are fetched again in
+ * the background once they are a minute old. There is one view per cloud
+ * id, so that reservations outlive a reconfiguration of the cloud.
+ */
+public class QuotaView {
+
+	private static final Logger LOGGER = Logger.getLogger(QuotaView.class.getName());
+
+	private static final long TTL = TimeUnit.MINUTES.toMillis(1);
+
+	/* Nova reports -1 for no limit. */
+	private static final int UNLIMITED = -1;
+
+	private static final ConcurrentMap<String, QuotaView> views = new ConcurrentHashMap<String, QuotaView>();
+
+	/* The cloud as last configured. */
+	private volatile OpenStackCloud cloud;
+
+	/* Guarded by this. */
+	private final Usage max = new Usage(UNLIMITED, UNLIMITED, UNLIMITED);
+	private final Usage used = new Usage(0, 0, 0);
+	private final Usage pending = new Usage(0, 0, 0);
+	private long loaded;
+	private boolean refreshing;
+
+	private static final class Usage {
+		int instances;
+		int cores;
+		int ram;
+
+		Usage(int instances, int cores, int ram) {
+			this.instances = instances;
+			this.cores = cores;
+			this.ram = ram;
+		}
+
+		void add(Usage other, int sign) {
+			instances = Math.max(instances + sign * other.instances, 0);
+			cores = Math.max(cores + sign * other.cores, 0);
+			ram = Math.max(ram + sign * other.ram, 0);
+		}
+	}
+
+	private QuotaView(OpenStackCloud cloud) {
+		this.cloud = cloud;
+	}
+
+	/* The view of the cloud's id, now answering to the given configuration. */
+	public static QuotaView get(OpenStackCloud cloud) {
+		String key = String.valueOf(cloud.id);
+		QuotaView view = views.get(key);
+		if( view == null ) {
+			QuotaView fresh = new QuotaView(cloud);
+			view = views.putIfAbsent(key, fresh);
+			if( view == null )
+				return fresh;
+		}
+		view.cloud = cloud;
+		/* The credentials, and so the tenant, may have changed. */
+		view.expire();
+		return view;
+	}
+
+	/* What one server of the template takes out of the quota. */
+	private Usage size(String templateId) {
+		SlaveTemplate template = cloud.getTemplate(templateId);
+		Flavor flavor = null;
+		try {
+			flavor = template != null ? cloud.getResources().getFlavor(template.flavorId) : null;
+		} catch( RuntimeException e ) {
+			LOGGER.log(Level.FINE, "Failed to resolve the flavor of " + templateId, e);
+		}
+		if( flavor == null )
+			return new Usage(1, 0, 0);
+		return new Usage(1,
+						 flavor.getVcpus() != null ? flavor.getVcpus() : 0,
+						 flavor.getRam() != null ? flavor.getRam() : 0);
+	}
+
+	private static boolean fits(int max, int used, int pending, int size) {
+		return max == UNLIMITED || used + pending + size <= max;
+	}
+
+	/* Reserves room for one server of the template, if it fits. */
+	public boolean reserve(SlaveTemplate template) {
+		Usage size = size(template.id);
+		ensureLoaded();
+		synchronized( this ) {
+			if( !fits(max.instances, used.instances, pending.instances, size.instances) ||
+				!fits(max.cores, used.cores, pending.cores, size.cores) ||
+				!fits(max.ram, used.ram, pending.ram, size.ram) ) {
+				LOGGER.fine("Quota of cloud " + cloud.id + " has no room for " + template.id);
+				return false;
+			}
+			pending.add(size, 1);
+		}
+		return true;
+	}
+
+	/* Reserves room for a server requested explicitly, fitting or not. */
+	public void forceReserve(SlaveTemplate template) {
+		Usage size = size(template.id);
+		synchronized( this ) {
+			pending.add(size, 1);
+		}
+	}
+
+	/* How many more servers of the template fit, or MAX_VALUE for no limit. */
+	public int getRoom(SlaveTemplate template) {
+		Usage size = size(template.id);
+		ensureLoaded();
+		synchronized( this ) {
+			int room = Integer.MAX_VALUE;
+			room = Math.min(room, room(max.instances, used.instances + pending.instances, size.instances));
+			room = Math.min(room, room(max.cores, used.cores + pending.cores, size.cores));
+			room = Math.min(room, room(max.ram, used.ram + pending.ram, size.ram));
+			return room;
+		}
+	}
+
+	private static int room(int max, int taken, int size) {
+		if( max == UNLIMITED || size <= 0 )
+			return Integer.MAX_VALUE;
+		return Math.max(max - taken, 0) / size;
+	}
+
+	public void booted(String templateId) {
+		Usage size = size(templateId);
+		synchronized( this ) {
+			pending.add(size, -1);
+			used.add(size, 1);
+		}
+	}
+
+	public void failed(String templateId) {
+		Usage size = size(templateId);
+		synchronized( this ) {
+			pending.add(size, -1);
+		}
+		/* Nova may know better, e.g. after a quota failure. */
+		expire();
+	}
+
+	public void deleted(String templateId) {
+		Usage size = size(templateId);
+		synchronized( this ) {
+			used.add(size, -1);
+		}
+	}
+
+	public synchronized void expire() {
+		loaded = Math.min(loaded, System.currentTimeMillis() - TTL);
+	}
+
+	/* Loads the limits on first use, and refreshes stale ones in the background. */
+	private void ensureLoaded() {
+		synchronized( this ) {
+			if( loaded > 0 && System.currentTimeMillis() - loaded < TTL )
+				return;
+			if( loaded > 0 ) {
+				if( !refreshing ) {
+					refreshing = true;
+					OpenStackExecutors.timer().execute(new Runnable() {
+						public void run() {
+							refresh();
+						}
+					});
+				}
+				return;
+			}
+		}
+		refresh();
+	}
+
+	void refresh() {
+		try {
+			JSONObject absolute = cloud.read("limits", new GetLimits()).getJSONObject("limits").getJSONObject("absolute");
+			synchronized( this ) {
+				max.instances = absolute.optInt("maxTotalInstances", UNLIMITED);
+				max.cores = absolute.optInt("maxTotalCores", UNLIMITED);
+				max.ram = absolute.optInt("maxTotalRAMSize", UNLIMITED);
+				used.instances = absolute.optInt("totalInstancesUsed", 0);
+				used.cores = absolute.optInt("totalCoresUsed", 0);
+				used.ram = absolute.optInt("totalRAMUsed", 0);
+			}
+		} catch( RuntimeException e ) {
+			/* Without limits to go by, let Nova decide. */
+			LOGGER.log(Level.FINE, "Failed to read limits for cloud " + cloud.id, e);
+		} finally {
+			synchronized( this ) {
+				loaded = System.currentTimeMillis();
+				refreshing = false;
+			}
+		}
+	}
+
+	public synchronized JSONObject toJSON() {
+		JSONObject r = new JSONObject();
+		r.put("maxInstances", max.instances);
+		r.put("maxCores", max.cores);
+		r.put("maxRam", max.ram);
+		r.put("usedInstances", used.instances + pending.instances);
+		r.put("usedCores", used.cores + pending.cores);
+		r.put("usedRam", used.ram + pending.ram);
+		return r;
+	}
+
+	/* GET /limits; the client library has no model for it. */
+	private static final class GetLimits implements NovaCommand<JSONObject> {
+		public JSONObject execute(WebTarget target) {
+			return JSONObject.fromObject(target.path("limits").request(MediaType.APPLICATION_JSON).get(String.class));
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package jenkins.plugins.openstack;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Spaces out Nova requests with a token bucket per kind of call, so that a
+ * burst of provisioning does not trip the cloud's own rate limits. Limits
+ * are written as "kind=rate" pairs in requests per second, e.g.
+ * "CreateServer=2, ShowServer=5, *=10", where * applies to any kind not
+ * listed. A kind can also be paused when Nova asks us to back off.
+ */
+public class RequestLimiter {
+
+	public static final String DEFAULT_LIMITS = "*=10";
+
+	private static final String ANY = "*";
+
+	private final Map<String, Double> rates;
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	public RequestLimiter(String limits) {
+		this.rates = parse(limits);
+	}
+
+	/* Parses a limits string, ignoring malformed entries. */
+	static Map<String, Double> parse(String limits) {
+		Map<String, Double> r = new TreeMap<String, Double>();
+		if( limits != null ) {
+			for( String entry : limits.split("[,;\\s]+") ) {
+				int eq = entry.indexOf('=');
+				if( eq <= 0 )
+					continue;
+				try {
+					double rate = Double.parseDouble(entry.substring(eq + 1).trim());
+					if( rate > 0 )
+						r.put(entry.substring(0, eq).trim(), rate);
+				} catch( NumberFormatException e ) {
+					/* Skip it. */
+				}
+			}
+		}
+		if( !r.containsKey(ANY) )
+			r.put(ANY, parse(DEFAULT_LIMITS).get(ANY));
+		return r;
+	}
+
+	private Bucket bucket(String kind) {
+		Bucket b = buckets.get(kind);
+		if( b == null ) {
+			Double rate = rates.get(kind);
+			Bucket fresh = new Bucket(rate != null ? rate : rates.get(ANY));
+			b = buckets.putIfAbsent(kind, fresh);
+			if( b == null )
+				b = fresh;
+		}
+		return b;
+	}
+
+	/* Blocks until a request of this kind may be sent. */
+	public void acquire(String kind) throws InterruptedException {
+		long wait = bucket(kind).reserve();
+		if( wait > 0 )
+			Thread.sleep(wait);
+	}
+
+	/* Holds back requests of this kind for the given time. */
+	public void pause(String kind, long millis) {
+		bucket(kind).pause(millis);
+	}
+
+	/* Requests that had to wait for their turn, by kind. */
+	public Map<String, Long> getDelayed() {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for( Map.Entry<String, Bucket> e : buckets.entrySet() )
+			r.put(e.getKey(), e.getValue().getDelayed());
+		return r;
+	}
+
+	/*
+	 * A token bucket holding up to one second's worth of requests, and never
+	 * less than one. Callers
+	 * reserve the next free slot and sleep outside the lock, so that a
+	 * waiting thread never holds up the others.
+	 */
+	private static final class Bucket {
+
+		private final long interval;
+		private final long burst;
+
+		/* When the next token becomes available, on the nanoTime clock. */
+		private long next;
+		private long delayed;
+
+		Bucket(double rate) {
+			this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			this.burst = Math.max(TimeUnit.SECONDS.toNanos(1), interval);
+			this.next = System.nanoTime() - burst;
+		}
+
+		synchronized long reserve() {
+			long now = System.nanoTime();
+			next = Math.max(next, now - burst + interval);
+			long wait = next - now;
+			next += interval;
+			if( wait > 0 )
+				delayed++;
+			return wait > 0 ? TimeUnit.NANOSECONDS.toMillis(wait) : 0;
+		}
+
+		synchronized void pause(long millis) {
+			next = Math.max(next, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+
+		synchronized long getDelayed() {
+			return delayed;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package jenkins.plugins.openstack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+
+import org.openstack.nova.NovaCommand;
+import org.openstack.nova.api.FlavorsCore;
+import org.openstack.nova.api.ImagesCore;
+import org.openstack.nova.model.Flavor;
+import org.openstack.nova.model.Image;
+import org.openstack.nova.model.Images;
+
+/*
+ * Resolves the flavor and image names or IDs used by templates. Entries
+ * are kept for a configurable time and then revalidated in the background
+ * with a targeted lookup, by ID for IDs and by name for names, so a boot
+ * never has to list the whole catalog and a name follows its image.
+ * Names not seen yet are looked up the same way. An entry that cannot be
+ * revalidated for now is kept and tried again a little later; only a
+ * lookup that finds nothing drops it.
+ */
+public class ResourceCache {
+
+	private static final Logger LOGGER = Logger.getLogger(ResourceCache.class.getName());
+
+	public static final int DEFAULT_TTL_MINUTES = 10;
+
+	/* How soon a failed revalidation is tried again. */
+	private static final long RETRY = TimeUnit.MINUTES.toMillis(1);
+
+	private final OpenStackSession session;
+	private final long ttl;
+
+	private final Catalog<Flavor> flavors = new Catalog<Flavor>("flavor") {
+		Iterable<Flavor> list() {
+			return session.read("flavors", FlavorsCore.listFlavors());
+		}
+		Flavor show(String id) {
+			return session.read("flavors/" + id, FlavorsCore.showFlavor(id));
+		}
+		/* Nova cannot filter flavors by name, but the listing is short. */
+		Flavor find(String name) {
+			for( Flavor flavor : list() )
+				if( name.equals(flavor.getName()) )
+					return flavor;
+			return null;
+		}
+		String idOf(Flavor flavor) {
+			return flavor.getId();
+		}
+		String nameOf(Flavor flavor) {
+			return flavor.getName();
+		}
+	};
+
+	private final Catalog<Image> images = new Catalog<Image>("image") {
+		Iterable<Image> list() {
+			return session.read("images", ImagesCore.listImages());
+		}
+		Image show(String id) {
+			return session.read("images/" + id, ImagesCore.showImage(id));
+		}
+		/* Newest first, so a name that was moved to a new image finds that one. */
+		Image find(String name) {
+			for( Image image : session.read("images?name=" + name, new ListImagesNamed(name)) )
+				if( name.equals(image.getName()) )
+					return image;
+			return null;
+		}
+		String idOf(Image image) {
+			return image.getId();
+		}
+		String nameOf(Image image) {
+			return image.getName();
+		}
+	};
+
+	public ResourceCache(OpenStackSession session, int ttlMinutes) {
+		this.session = session;
+		this.ttl = TimeUnit.MINUTES.toMillis(ttlMinutes);
+	}
+
+	public Flavor getFlavor(String flavorId) {
+		return flavors.get(flavorId);
+	}
+
+	public String getFlavorRef(String flavorId) {
+		Flavor flavor = flavors.get(flavorId);
+		return flavor != null ? flavor.getId() : null;
+	}
+
+	public Image getImage(String imageId) {
+		return images.get(imageId);
+	}
+
+	public String getImageRef(String imageId) {
+		Image image = images.get(imageId);
+		return image != null ? image.getId() : null;
+	}
+
+	/* Lists both catalogs in full, e.g. when asked to refresh explicitly. */
+	public void refresh() {
+		flavors.reload();
+		images.reload();
+	}
+
+	/* Drops whatever the template resolved to, e.g. after a failed boot. */
+	public void invalidate(SlaveTemplate template) {
+		flavors.invalidate(template.flavorId);
+		images.invalidate(template.imageId);
+	}
+
+	private static final class Entry<T> {
+		final T value;
+		final long loaded;
+		volatile boolean refreshing;
+
+		Entry(T value, long loaded) {
+			this.value = value;
+			this.loaded = loaded;
+		}
+	}
+
+	private abstract class Catalog<T> {
+
+		private final String kind;
+
+		/* Keyed by both ID and name; replaced wholesale on every change. */
+		private volatile Map<String, Entry<T>> entries = new HashMap<String, Entry<T>>();
+
+		Catalog(String kind) {
+			this.kind = kind;
+		}
+
+		abstract Iterable<T> list();
+		abstract T show(String id);
+		abstract T find(String name);
+		abstract String idOf(T value);
+		abstract String nameOf(T value);
+
+		T get(String key) {
+			if( key == null || key.length() == 0 )
+				return null;
+			Entry<T> entry = entries.get(key);
+			if( entry == null )
+				return resolve(key);
+			if( System.currentTimeMillis() - entry.loaded > ttl )
+				revalidate(key, entry);
+			return entry.value;
+		}
+
+		private synchronized T resolve(String key) {
+			Entry<T> entry = entries.get(key);
+			if( entry != null )
+				return entry.value;
+
+			/* Templates usually name an ID, which can be fetched on its own. */
+			try {
+				T value = show(key);
+				if( value != null ) {
+					put(value);
+					return value;
+				}
+			} catch( RuntimeException e ) {
+				LOGGER.log(Level.FINE, "No " + kind + " with ID " + key + ", looking it up by name", e);
+			}
+
+			T value = find(key);
+			if( value != null )
+				put(value);
+			return value;
+		}
+
+		private void revalidate(final String key, final Entry<T> entry) {
+			if( entry.refreshing )
+				return;
+			entry.refreshing = true;
+			OpenStackExecutors.timer().execute(new Runnable() {
+				public void run() {
+					try {
+						/* A name may have been moved to something else since. */
+						T value = key.equals(idOf(entry.value)) ? show(key) : find(key);
+						if( value != null )
+							put(value);
+						else
+							invalidate(key);
+					} catch( WebApplicationException e ) {
+						if( e.getResponse() != null && e.getResponse().getStatus() == 404 ) {
+							invalidate(key);
+						} else {
+							LOGGER.log(Level.FINE, "Failed to revalidate " + kind + " " + key, e);
+							retryLater(entry);
+						}
+					} catch( RuntimeException e ) {
+						LOGGER.log(Level.FINE, "Failed to revalidate " + kind + " " + key, e);
+						retryLater(entry);
+					}
+				}
+			});
+		}
+
+		private synchronized void put(T value) {
+			Entry<T> entry = new Entry<T>(value, System.currentTimeMillis());
+			Map<String, Entry<T>> copy = new HashMap<String, Entry<T>>(entries);
+			copy.put(idOf(value), entry);
+			if( nameOf(value) != null )
+				copy.put(nameOf(value), entry);
+			entries = copy;
+		}
+
+		/* Keeps the stale entry, due for revalidation again after RETRY. */
+		private synchronized void retryLater(Entry<T> entry) {
+			Entry<T> kept = new Entry<T>(entry.value, System.currentTimeMillis() - ttl + Math.min(RETRY, ttl));
+			Map<String, Entry<T>> copy = new HashMap<String, Entry<T>>(entries);
+			for( Map.Entry<String, Entry<T>> e : copy.entrySet() )
+				if( e.getValue() == entry )
+					e.setValue(kept);
+			entries = copy;
+		}
+
+		synchronized void reload() {
+			long now = System.currentTimeMillis();
+			List<Entry<T>> loaded = new ArrayList<Entry<T>>();
+			for( T value : list() )
+				loaded.add(new Entry<T>(value, now));
+
+			Map<String, Entry<T>> fresh = new HashMap<String, Entry<T>>();
+			for( Entry<T> entry : loaded )
+				if( nameOf(entry.value) != null )
+					fresh.put(nameOf(entry.value), entry);
+			/* IDs take precedence over names that happen to look like one. */
+			for( Entry<T> entry : loaded )
+				fresh.put(idOf(entry.value), entry);
+			entries = fresh;
+		}
+
+		synchronized void invalidate(String key) {
+			if( key == null )
+				return;
+			Entry<T> entry = entries.get(key);
+			if( entry == null )
+				return;
+			Map<String, Entry<T>> copy = new HashMap<String, Entry<T>>(entries);
+			Iterator<Entry<T>> it = copy.values().iterator();
+			while( it.hasNext() )
+				if( it.next() == entry )
+					it.remove();
+			entries = copy;
+		}
+	}
+
+	/* images/detail?name=, which the client library has no command for. */
+	private static final class ListImagesNamed implements NovaCommand<Images> {
+
+		private final String name;
+
+		ListImagesNamed(String name) {
+			this.name = name;
+		}
+
+		public Images execute(WebTarget target) {
+			return target.path("images").path("detail")
+						.queryParam("name", name)
+						.request(MediaType.APPLICATION_JSON)
+						.get(Images.class);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package jenkins.plugins.openstack;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import org.openstack.nova.NovaCommand;
+
+/*
+ * Server actions the client library does not cover, each a POST of
+ * {"name": body} to servers/ID/action.
+ */
+public final class ServerActions {
+
+	private ServerActions() {
+	}
+
+	public static NovaCommand<Void> stop(String serverId) {
+		return new StopServer(serverId);
+	}
+
+	public static NovaCommand<Void> start(String serverId) {
+		return new StartServer(serverId);
+	}
+
+	/* Reinstalls the server from the image, keeping its ID, ports and addresses. */
+	public static NovaCommand<Void> rebuild(String serverId, String imageRef) {
+		return new RebuildServer(serverId, imageRef);
+	}
+
+	/* The last length lines of the server's console log. */
+	public static NovaCommand<String> consoleOutput(String serverId, int length) {
+		return new GetConsoleOutput(serverId, length);
+	}
+
+	private abstract static class Action<R> implements NovaCommand<R> {
+
+		private final String serverId;
+		private final String name;
+
+		Action(String serverId, String name) {
+			this.serverId = serverId;
+			this.name = name;
+		}
+
+		Object body() {
+			return JSONNull.getInstance();
+		}
+
+		R parse(String response) {
+			return null;
+		}
+
+		public R execute(WebTarget target) {
+			JSONObject action = new JSONObject();
+			action.put(name, body());
+			return parse(target.path("servers").path(serverId).path("action")
+							.request(MediaType.APPLICATION_JSON)
+							.post(Entity.json(action.toString()), String.class));
+		}
+	}
+
+	/* Named after the action so that rate limits and metrics can tell them apart. */
+	private static final class StopServer extends Action<Void> {
+		StopServer(String serverId) {
+			super(serverId, "os-stop");
+		}
+	}
+
+	private static final class StartServer extends Action<Void> {
+		StartServer(String serverId) {
+			super(serverId, "os-start");
+		}
+	}
+
+	private static final class RebuildServer extends Action<Void> {
+		private final String imageRef;
+
+		RebuildServer(String serverId, String imageRef) {
+			super(serverId, "rebuild");
+			this.imageRef = imageRef;
+		}
+
+		@Override
+		Object body() {
+			return new JSONObject().element("imageRef", imageRef);
+		}
+	}
+
+	private static final class GetConsoleOutput extends Action<String> {
+		private final int length;
+
+		GetConsoleOutput(String serverId, int length) {
+			super(serverId, "os-getConsoleOutput");
+			this.length = length;
+		}
+
+		@Override
+		Object body() {
+			return new JSONObject().element("length", length);
+		}
+
+		@Override
+		String parse(String response) {
+			return JSONObject.fromObject(response).optString("output", "");
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package jenkins.plugins.openstack;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.openstack.nova.NovaCommand;
+import org.openstack.nova.model.Server;
+import org.openstack.nova.model.Servers;
+
+/*
+ * Every server of the tenant, or every one changed since a given time,
+ * from servers/detail. Nova returns at most osapi_max_limit servers per
+ * request and links to the rest from servers_links, so pages are followed
+ * by marker until there is no next one. A listing cut short cannot tell a
+ * server that is gone from one on a later page; callers acting on
+ * absences check isComplete() first.
+ */
+public final class ServerListing {
+
+	/* Enough for a tenant of 100000 servers at the default limit. */
+	private static final int MAX_PAGES = 100;
+
+	private final List<Server> servers;
+	private final boolean complete;
+
+	private ServerListing(List<Server> servers, boolean complete) {
+		this.servers = Collections.unmodifiableList(servers);
+		this.complete = complete;
+	}
+
+	public static NovaCommand<ServerListing> all() {
+		return new ListAllServers(null);
+	}
+
+	/* Servers changed since the given time, deleted ones included. */
+	public static NovaCommand<ServerListing> changedSince(long since) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return new ListServersChangedSince(format.format(new Date(since)));
+	}
+
+	public List<Server> getList() {
+		return servers;
+	}
+
+	/* Whether every page was read. */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	private static class ListAllServers implements NovaCommand<ServerListing> {
+
+		private final String changesSince;
+
+		ListAllServers(String changesSince) {
+			this.changesSince = changesSince;
+		}
+
+		public ServerListing execute(WebTarget target) {
+			List<Server> servers = new ArrayList<Server>();
+			String marker = null;
+			for( int page = 0; page < MAX_PAGES; page++ ) {
+				WebTarget detail = target.path("servers").path("detail");
+				if( changesSince != null )
+					detail = detail.queryParam("changes-since", changesSince);
+				if( marker != null )
+					detail = detail.queryParam("marker", marker);
+				Response response = detail.request(MediaType.APPLICATION_JSON).get();
+				if( response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL )
+					throw new WebApplicationException(response);
+				/* Read twice: as servers, and for the links the model leaves out. */
+				response.bufferEntity();
+				List<Server> list = response.readEntity(Servers.class).getList();
+				servers.addAll(list);
+				if( list.isEmpty() || !hasNext(response.readEntity(String.class)) )
+					return new ServerListing(servers, true);
+				marker = list.get(list.size() - 1).getId();
+			}
+			return new ServerListing(servers, false);
+		}
+
+		private static boolean hasNext(String response) {
+			JSONArray links = JSONObject.fromObject(response).optJSONArray("servers_links");
+			if( links == null )
+				return false;
+			for( int i = 0; i < links.size(); i++ )
+				if( "next".equals(links.getJSONObject(i).optString("rel")) )
+					return true;
+			return false;
+		}
+	}
+
+	/* Named apart from the full listing so that rate limits and metrics can tell them apart. */
+	private static final class ListServersChangedSince extends ListAllServers {
+		ListServersChangedSince(String changesSince) {
+			super(changesSince);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package jenkins.plugins.openstack;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import hudson.slaves.OfflineCause;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.nova.model.Server;
+
+/*
+ * Loads each cloud's state map with its first full listing, in the
+ * background, and hands every persisted slave its server from it. That
+ * takes one listing per cloud instead of one request per slave while
+ * nodes are loaded. Clouds are loaded in parallel and never hold up
+ * startup or a configuration save; until then, the map knows nothing.
+ */
+public final class ServerStateLoader {
+
+	private static final Logger LOGGER = Logger.getLogger(ServerStateLoader.class.getName());
+
+	private ServerStateLoader() {
+	}
+
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void loadAll() {
+		for( Cloud cloud : Hudson.getInstance().clouds )
+			if( cloud instanceof OpenStackCloud )
+				loadAsync((OpenStackCloud) cloud);
+	}
+
+	/* Loads the cloud's state map, e.g. a new one after reconfiguration. */
+	public static void loadAsync(final OpenStackCloud cloud) {
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				try {
+					load(cloud);
+				} catch( RuntimeException e ) {
+					LOGGER.log(Level.WARNING, "Failed to load servers for cloud " + cloud.id, e);
+				}
+			}
+		});
+	}
+
+	static void load(OpenStackCloud cloud) {
+		ServerStateMap servers = cloud.getServerStates();
+		servers.load();
+
+		for( Node node : Hudson.getInstance().getNodes() ) {
+			if( !(node instanceof OpenStackSlave) )
+				continue;
+			OpenStackSlave slave = (OpenStackSlave) node;
+			if( OpenStackCloud.get(slave.cloudId) != cloud )
+				continue;
+
+			Server server = servers.get(slave.serverId);
+			if( server != null )
+				slave.refresh(server);
+			else if( servers.isComplete() )
+				slave.setServer(null);
+			if( slave.isGone() ) {
+				LOGGER.info("Server " + slave.serverId + " for " + slave.getNodeName() + " no longer exists");
+				Computer c = slave.toComputer();
+				if( c != null )
+					c.setTemporarilyOffline(true,
+						OfflineCause.create(Messages._OpenStackSlave_ServerGone(slave.serverId)));
+			}
+		}
+	}
+}
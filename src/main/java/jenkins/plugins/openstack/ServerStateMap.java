@@ -0,0 +1,237 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.slaves.OfflineCause;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.nova.model.Server;
+
+/*
+ * The last known state of every server in a cloud, so that slaves never
+ * have to ask Nova about their own server. After one full listing the map
+ * is kept current with servers/detail?changes-since= every few seconds,
+ * which only returns the servers that changed, deleted ones included.
+ * Slaves whose server goes to ERROR or SHUTOFF, or disappears, are taken
+ * offline as soon as the change is seen. The status poller and the start
+ * and rebuild of servers record what they see here too; a state only
+ * replaces one that Nova last updated no later than it.
+ */
+public class ServerStateMap {
+
+	private static final Logger LOGGER = Logger.getLogger(ServerStateMap.class.getName());
+
+	private static final long INTERVAL = TimeUnit.SECONDS.toMillis(15);
+
+	/* Ask for a little more than the last interval, in case clocks disagree. */
+	private static final long OVERLAP = TimeUnit.MINUTES.toMillis(2);
+
+	/* A full listing now and then corrects anything a delta missed. */
+	private static final long FULL_SYNC = TimeUnit.MINUTES.toMillis(30);
+
+	private final OpenStackCloud cloud;
+	private final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<String, Server>();
+
+	/* Guarded by this. */
+	private long lastSync;
+	private long lastFullSync;
+
+	/* Syncs never overlap. */
+	private final Object syncLock = new Object();
+
+	/* Whether the first full listing is in; until then nothing is known. */
+	private volatile boolean loaded;
+
+	/* Whether the last full listing had every page, so that absent means gone. */
+	private volatile boolean complete;
+
+	public ServerStateMap(OpenStackCloud cloud) {
+		this.cloud = cloud;
+	}
+
+	/*
+	 * Starts the background sync, which stops once the cloud is reconfigured.
+	 * The first listing is left to ServerStateLoader; a failed one is tried
+	 * again here.
+	 */
+	public void start() {
+		OpenStackExecutors.timer().schedule(new Runnable() {
+			public void run() {
+				if( OpenStackCloud.get(cloud.id) != cloud )
+					return;
+				try {
+					if( loaded )
+						sync();
+					else
+						ServerStateLoader.load(cloud);
+				} catch( RuntimeException e ) {
+					LOGGER.log(Level.WARNING, "Failed to sync servers of cloud " + cloud.id, e);
+				}
+				OpenStackExecutors.timer().schedule(this, INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}, INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * The server's last known state, or null if it does not exist or is not
+	 * known yet. Never asks Nova.
+	 */
+	public Server get(String serverId) {
+		return servers.get(serverId);
+	}
+
+	public int size() {
+		return servers.size();
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/* Whether a server missing from the map is known not to exist. */
+	public boolean isComplete() {
+		return loaded && complete;
+	}
+
+	/* Runs the first full listing, unless it is already in. */
+	void load() {
+		synchronized( syncLock ) {
+			if( !loaded )
+				sync();
+		}
+	}
+
+	/* Records a state seen outside the sync, unless a newer one is known. */
+	public boolean put(Server server) {
+		String id = server.getId();
+		while( true ) {
+			Server known = servers.get(id);
+			if( known != null && isNewer(known, server) )
+				return false;
+			if( known == null ? servers.putIfAbsent(id, server) == null : servers.replace(id, known, server) )
+				return true;
+		}
+	}
+
+	/* Whether Nova updated the server after the other state of it. */
+	public static boolean isNewer(Server server, Server than) {
+		return updated(server) > updated(than);
+	}
+
+	private static long updated(Server server) {
+		Calendar updated = server.getUpdated();
+		return updated != null ? updated.getTimeInMillis() : 0;
+	}
+
+	public void sync() {
+		synchronized( syncLock ) {
+			doSync();
+		}
+	}
+
+	private void doSync() {
+		long started = System.currentTimeMillis();
+		boolean full;
+		long since;
+		synchronized( this ) {
+			full = lastFullSync == 0 || started - lastFullSync >= FULL_SYNC;
+			since = lastSync - OVERLAP;
+		}
+
+		Map<String, Server> changed = new HashMap<String, Server>();
+		boolean listedAll = complete;
+		boolean missed = false;
+		if( full ) {
+			ServerListing listing = cloud.read("servers/detail", ServerListing.all());
+			listedAll = listing.isComplete();
+			Map<String, Server> listed = new HashMap<String, Server>();
+			for( Server server : listing.getList() )
+				listed.put(server.getId(), server);
+			/* Servers on the pages not read would look deleted. */
+			if( listedAll )
+				for( String id : servers.keySet() )
+					if( !listed.containsKey(id) )
+						changed.put(id, null);
+			for( Server server : listed.values() ) {
+				Server known = servers.get(server.getId());
+				if( known == null || isNewer(server, known) )
+					changed.put(server.getId(), server);
+			}
+		} else {
+			ServerListing listing = cloud.execute(ServerListing.changedSince(since));
+			missed = !listing.isComplete();
+			for( Server server : listing.getList() ) {
+				if( "DELETED".equals(server.getStatus()) )
+					changed.put(server.getId(), null);
+				else
+					changed.put(server.getId(), server);
+			}
+		}
+
+		for( Iterator<Map.Entry<String, Server>> it = changed.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Server> e = it.next();
+			if( e.getValue() == null ) {
+				Server known = servers.get(e.getKey());
+				if( full && known != null && updated(known) >= started )
+					/* Recorded after the listing began, e.g. a fresh boot. */
+					it.remove();
+				else
+					servers.remove(e.getKey());
+			} else if( !put(e.getValue()) )
+				/* Seen since, e.g. by the poller. */
+				it.remove();
+		}
+		synchronized( this ) {
+			lastSync = started;
+			if( full )
+				lastFullSync = started;
+			else if( missed )
+				/* Some changes were not read; list everything next time. */
+				lastFullSync = started - FULL_SYNC;
+		}
+		complete = listedAll;
+		loaded = true;
+		if( !changed.isEmpty() )
+			notifySlaves(changed);
+	}
+
+	/* Passes changes on to the slaves, in one pass over the nodes. */
+	private void notifySlaves(Map<String, Server> changed) {
+		Hudson hudson = Hudson.getInstance();
+		if( hudson == null )
+			return;
+		for( Node node : hudson.getNodes() ) {
+			if( !(node instanceof OpenStackSlave) )
+				continue;
+			OpenStackSlave slave = (OpenStackSlave) node;
+			if( !changed.containsKey(slave.serverId) || OpenStackCloud.get(slave.cloudId) != cloud )
+				continue;
+
+			Server server = changed.get(slave.serverId);
+			if( server == null )
+				slave.setServer(null);
+			else if( !slave.refresh(server) )
+				continue;
+			OfflineCause cause = null;
+			if( server == null )
+				cause = OfflineCause.create(Messages._OpenStackSlave_ServerGone(slave.serverId));
+			else if( "ERROR".equals(server.getStatus()) || "SHUTOFF".equals(server.getStatus()) )
+				cause = OfflineCause.create(Messages._OpenStackSlave_ServerState(slave.serverId, server.getStatus()));
+			Computer c = slave.toComputer();
+			if( cause != null && c != null && !c.isTemporarilyOffline() ) {
+				LOGGER.info("Taking " + slave.getNodeName() + " offline: " + cause);
+				c.setTemporarilyOffline(true, cause);
+			}
+		}
+	}
+}
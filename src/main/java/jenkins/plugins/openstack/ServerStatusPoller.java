@@ -0,0 +1,189 @@
+package jenkins.plugins.openstack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.nova.model.Server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/*
+ * Waits for servers to leave the BUILD state, or to reach some other
+ * status such as SHUTOFF after a stop. Rather than every provisioning
+ * thread polling its own server, a single detailed listing per tick is
+ * matched against all servers in flight. Ticks are frequent while a boot is
+ * fresh and back off as the oldest outstanding boot ages.
+ *
+ * Each tick only lists the servers changed since the previous one. The
+ * whole tenant is listed on the first tick, after a listing of changes was
+ * cut short, and when a watched server has not shown up for a while: it
+ * may have settled before it was watched, or be gone without a trace.
+ */
+public class ServerStatusPoller {
+
+	private static final Logger LOGGER = Logger.getLogger(ServerStatusPoller.class.getName());
+
+	/* A server missing from the listing for this long is treated as gone. */
+	private static final long MISSING_GRACE = TimeUnit.SECONDS.toMillis(30);
+
+	/* Listings of changes reach back this far before the last tick, for clock skew. */
+	private static final long OVERLAP = TimeUnit.MINUTES.toMillis(1);
+
+	private final OpenStackSession session;
+	private final ServerStateMap states;
+
+	private final ConcurrentMap<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+	private boolean scheduled;
+
+	/* When the last listing began, or 0 if the next one has to be complete. */
+	private volatile long lastTick;
+
+	private static final class Watch {
+		final SettableFuture<Server> future = SettableFuture.create();
+		final long started = System.currentTimeMillis();
+		/* The status that settles the watch besides ERROR, or null for any but BUILD. */
+		final String status;
+		volatile boolean seen;
+
+		Watch(String status) {
+			this.status = status;
+		}
+
+		boolean settles(Server server) {
+			if( "ERROR".equals(server.getStatus()) )
+				return true;
+			return status != null ? status.equals(server.getStatus()) : "ACTIVE".equals(server.getStatus());
+		}
+	}
+
+	public ServerStatusPoller(OpenStackSession session, ServerStateMap states) {
+		this.session = session;
+		this.states = states;
+	}
+
+	/*
+	 * Returns a future that completes with the server once it is ACTIVE or
+	 * in ERROR, and fails if the server disappears.
+	 */
+	public ListenableFuture<Server> watch(String serverId) {
+		return watch(serverId, null);
+	}
+
+	/*
+	 * Returns a future that completes with the server once it has the given
+	 * status or is in ERROR, and fails if the server disappears.
+	 */
+	public ListenableFuture<Server> watch(String serverId, String status) {
+		Watch watch = new Watch(status);
+		Watch existing = watches.putIfAbsent(serverId, watch);
+		if( existing != null )
+			return existing.future;
+		schedule();
+		return watch.future;
+	}
+
+	public void cancel(String serverId) {
+		Watch watch = watches.remove(serverId);
+		if( watch != null )
+			watch.future.cancel(false);
+	}
+
+	public boolean isWatching(String serverId) {
+		return watches.containsKey(serverId);
+	}
+
+	public int getInFlight() {
+		return watches.size();
+	}
+
+	private synchronized void schedule() {
+		if( scheduled || watches.isEmpty() )
+			return;
+		scheduled = true;
+		OpenStackExecutors.timer().schedule(new Runnable() {
+			public void run() {
+				synchronized( ServerStatusPoller.this ) {
+					scheduled = false;
+				}
+				try {
+					poll();
+				} catch( RuntimeException e ) {
+					LOGGER.log(Level.WARNING, "Failed to poll server status", e);
+				} finally {
+					schedule();
+				}
+			}
+		}, nextDelay(), TimeUnit.MILLISECONDS);
+	}
+
+	/* Poll at the rate suited to the most recent boot. */
+	private long nextDelay() {
+		long youngest = Long.MAX_VALUE;
+		long now = System.currentTimeMillis();
+		for( Watch watch : watches.values() )
+			youngest = Math.min(youngest, now - watch.started);
+		if( youngest < TimeUnit.SECONDS.toMillis(30) )
+			return TimeUnit.SECONDS.toMillis(1);
+		if( youngest < TimeUnit.MINUTES.toMillis(2) )
+			return TimeUnit.SECONDS.toMillis(3);
+		if( youngest < TimeUnit.MINUTES.toMillis(10) )
+			return TimeUnit.SECONDS.toMillis(10);
+		return TimeUnit.SECONDS.toMillis(30);
+	}
+
+	private void poll() {
+		if( watches.isEmpty() )
+			return;
+
+		long started = System.currentTimeMillis();
+		boolean full = lastTick == 0 || hasUnseen(started);
+		ServerListing listing = full
+				? session.read("servers/detail", ServerListing.all())
+				: session.execute(ServerListing.changedSince(lastTick - OVERLAP));
+		/* Changes that were not read could be anywhere; list everything next time. */
+		lastTick = listing.isComplete() ? started : 0;
+
+		Map<String, Server> servers = new HashMap<String, Server>();
+		for( Server server : listing.getList() ) {
+			if( watches.containsKey(server.getId()) ) {
+				servers.put(server.getId(), server);
+				/* Slaves take their state from the map; keep it as fresh as the watch. */
+				if( !"DELETED".equals(server.getStatus()) )
+					states.put(server);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		for( Map.Entry<String, Watch> entry : watches.entrySet() ) {
+			String id = entry.getKey();
+			Watch watch = entry.getValue();
+			Server server = servers.get(id);
+			if( server == null ) {
+				/* Only a complete listing shows that a server is gone; a listing of changes leaves out the rest. */
+				if( full && listing.isComplete() && now - watch.started > MISSING_GRACE && watches.remove(id, watch) )
+					watch.future.setException(new IllegalStateException("Server " + id + " no longer exists"));
+			} else if( "DELETED".equals(server.getStatus()) ) {
+				if( watches.remove(id, watch) )
+					watch.future.setException(new IllegalStateException("Server " + id + " no longer exists"));
+			} else {
+				watch.seen = true;
+				if( watch.settles(server) && watches.remove(id, watch) )
+					watch.future.set(server);
+			}
+		}
+	}
+
+	/* Whether a server watched for a while has not been in any listing yet. */
+	private boolean hasUnseen(long now) {
+		for( Watch watch : watches.values() )
+			if( !watch.seen && now - watch.started > MISSING_GRACE )
+				return true;
+		return false;
+	}
+}
@@ -2,25 +2,45 @@ package jenkins.plugins.openstack;
 
 import hudson.Extension;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Hudson;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
 import hudson.util.FormValidation;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.servlet.ServletException;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
-import org.openstack.nova.NovaClient;
+import org.openstack.nova.api.ServersCore;
 import org.openstack.nova.model.Server;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 public class SlaveTemplate implements Describable<SlaveTemplate> {
+
+	private static final Logger LOGGER = Logger.getLogger(SlaveTemplate.class.getName());
+
+	public static final int DEFAULT_IDLE_MINUTES = 30;
+
+	/* Boots per node before giving up on servers that end in ERROR or stay in BUILD. */
+	private static final int MAX_BOOT_ATTEMPTS = 3;
 	
 	public final String id;
     public final String description;
@@ -38,11 +58,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     public final String privateKey;
     public final String labels;
     public final String numExecutors;
+    public final String instanceCapStr;
+    public final String minIdleStr;
+    public final String idleMinutesStr;
+    public final String noDemandIdleMinutesStr;
+    public final String billingMinutesStr;
+    public final String weightStr;
+    public final String priorityStr;
     public final boolean stopOnTerminate;
+    public final boolean rebuildOnTerminate;
+    public final boolean jnlp;
+    public final String consoleReadyPattern;
+    public final String consoleFailurePattern;
     
     private transient OpenStackCloud parent;
     public transient String[] securityGroups;
     private transient Set<LabelAtom> labelSet;
+    private transient List<String> availabilityZones;
+    private transient volatile String preferredNetwork;
+    private transient Pattern consoleReady;
+    private transient Pattern consoleFailure;
 
     @DataBoundConstructor
     public SlaveTemplate(String id,
@@ -59,7 +94,18 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     					 String privateKey,
     					 String labelString,
     					 String numExecutors,
-    					 boolean stopOnTerminate) {
+    					 String instanceCapStr,
+    					 String minIdleStr,
+    					 String idleMinutesStr,
+    					 String noDemandIdleMinutesStr,
+    					 String billingMinutesStr,
+    					 String weightStr,
+    					 String priorityStr,
+    					 boolean stopOnTerminate,
+    					 boolean rebuildOnTerminate,
+    					 boolean jnlp,
+    					 String consoleReadyPattern,
+    					 String consoleFailurePattern) {
     	
     	this.id = id;
         this.description = description;
@@ -77,7 +123,18 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         this.privateKey = Util.fixEmpty(privateKey);
         this.labels = Util.fixNull(labelString);
         this.numExecutors = numExecutors;
+        this.instanceCapStr = instanceCapStr;
+        this.minIdleStr = minIdleStr;
+        this.idleMinutesStr = idleMinutesStr;
+        this.noDemandIdleMinutesStr = noDemandIdleMinutesStr;
+        this.billingMinutesStr = billingMinutesStr;
+        this.weightStr = weightStr;
+        this.priorityStr = priorityStr;
         this.stopOnTerminate = stopOnTerminate;
+        this.rebuildOnTerminate = rebuildOnTerminate;
+        this.jnlp = jnlp;
+        this.consoleReadyPattern = Util.fixEmptyAndTrim(consoleReadyPattern);
+        this.consoleFailurePattern = Util.fixEmptyAndTrim(consoleFailurePattern);
         
         readResolve();
     }
@@ -85,8 +142,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     public Object readResolve() {
         securityGroups = this.securityGroupsStr.split(" ");
         labelSet = Label.parse(this.labels);
+        List<String> zones = new ArrayList<String>();
+        for( String zone : Util.fixNull(availabilityZone).split("[,\\s]+") )
+        	if( zone.length() > 0 )
+        		zones.add(zone);
+        availabilityZones = Collections.unmodifiableList(zones);
+        consoleReady = compile(consoleReadyPattern);
+        consoleFailure = compile(consoleFailurePattern);
         return this;
     }
+
+    private Pattern compile(String regex) {
+    	if( regex == null )
+    		return null;
+    	try {
+    		return Pattern.compile(regex);
+    	} catch( PatternSyntaxException e ) {
+    		LOGGER.warning("Ignoring the console pattern " + regex + " of " + id + ": " + e.getDescription());
+    		return null;
+    	}
+    }
     
     public OpenStackCloud getParent() {
         return parent;
@@ -97,9 +172,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
 	public boolean matches(Label label) {
+		/* Unlabeled work only goes to slaves that accept any job. */
+		if( label == null )
+			return getMode() == Node.Mode.NORMAL;
         return label.matches(labelSet);
 	}
+
+	public Node.Mode getMode() {
+		return stopOnTerminate ? Node.Mode.EXCLUSIVE : Node.Mode.NORMAL;
+	}
 	
+    /* Whether booting servers have their console tailed, see ConsoleWatcher. */
+    public boolean watchesConsole() {
+    	return consoleReady != null || consoleFailure != null;
+    }
+
+    /* The zones to spread servers across; empty to leave it to Nova. */
+    public List<String> getAvailabilityZones() {
+    	return availabilityZones;
+    }
+
     public int getNumExecutors() {
         try {
             return Integer.parseInt(numExecutors);
@@ -108,12 +200,191 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
     }
 
+    public int getInstanceCap() {
+        try {
+            return Integer.parseInt(instanceCapStr);
+        } catch (NumberFormatException e) {
+        	return Integer.MAX_VALUE;
+        }
+    }
+
+    public int getMinIdle() {
+        try {
+            return Integer.parseInt(minIdleStr);
+        } catch (NumberFormatException e) {
+        	return 0;
+        }
+    }
+
+    /* The network that was reachable first on the last launch. */
+    public String getPreferredNetwork() {
+    	return preferredNetwork;
+    }
+
+    void setPreferredNetwork(String network) {
+    	this.preferredNetwork = network;
+    }
+
+    public int getIdleMinutes() {
+        try {
+            return Integer.parseInt(idleMinutesStr);
+        } catch (NumberFormatException e) {
+        	return DEFAULT_IDLE_MINUTES;
+        }
+    }
+
+    public int getNoDemandIdleMinutes() {
+        try {
+            return Integer.parseInt(noDemandIdleMinutesStr);
+        } catch (NumberFormatException e) {
+        	return getIdleMinutes();
+        }
+    }
+
+    public int getBillingMinutes() {
+        try {
+            return Integer.parseInt(billingMinutesStr);
+        } catch (NumberFormatException e) {
+        	return 0;
+        }
+    }
+
+    public int getWeight() {
+        try {
+            return Integer.parseInt(weightStr);
+        } catch (NumberFormatException e) {
+        	return 1;
+        }
+    }
+
+    /* Queued boots of templates with a higher priority start first. */
+    public int getPriority() {
+        try {
+            return Integer.parseInt(priorityStr);
+        } catch (NumberFormatException e) {
+        	return 0;
+        }
+    }
+
+    public WarmPool getPool() {
+    	return WarmPool.get(parent.id, id);
+    }
+
+    /*
+     * Boots a server for a new slave. A server that ends in ERROR or stays
+     * in BUILD is deleted and replaced by one in another zone, so that the
+     * node only fails once every attempt has.
+     */
     public OpenStackSlave provision() throws IOException, FormException, InterruptedException {
-		NovaClient client = parent.connect();
-		Server server = OpenStackCloud.boot(client, this);
-		OpenStackSlave slave = new OpenStackSlave(this, parent, server);
-    	slave.waitForActive();
-    	return slave;
+    	return get(provisionAsync());
+    }
+
+    /* As provision(), without holding a thread while the servers build. */
+    public ListenableFuture<OpenStackSlave> provisionAsync() {
+    	final SettableFuture<OpenStackSlave> result = SettableFuture.create();
+    	final ListenableFuture<Server> created = parent.getBatcher().submit(this);
+    	created.addListener(new Runnable() {
+    		public void run() {
+    			Server server;
+    			try {
+    				server = created.get();
+    			} catch( ExecutionException e ) {
+    				result.setException(e.getCause());
+    				return;
+    			} catch( InterruptedException e ) {
+    				/* Cannot happen, the boot is done. */
+    				result.setException(e);
+    				return;
+    			}
+    			build(server, new ArrayList<String>(), 1, result);
+    		}
+    	}, MoreExecutors.sameThreadExecutor());
+    	return result;
+    }
+
+    private void build(final Server server,
+    				   final List<String> tried,
+    				   final int attempt,
+    				   final SettableFuture<OpenStackSlave> result) {
+    	final String zone = parent.getZones().getPlacement(server.getId());
+    	final OpenStackSlave slave;
+    	try {
+    		slave = new OpenStackSlave(this, parent, server);
+    	} catch( Exception e ) {
+    		result.setException(e);
+    		return;
+    	}
+    	final ConsoleWatcher console = watchesConsole()
+    		? new ConsoleWatcher(parent, server.getId(), consoleReady, consoleFailure)
+    		: null;
+    	if( console != null ) {
+    		slave.setConsole(console);
+    		console.start();
+    	}
+    	slave.watchActive().addListener(new Runnable() {
+    		public void run() {
+    			Server current = slave.getServer();
+    			if( current == null || !"ACTIVE".equals(current.getStatus()) ) {
+    				String status = current != null ? current.getStatus() : "gone";
+    				retry(server, status, zone, tried, attempt, console, result);
+    				return;
+    			}
+    			if( console == null || consoleReady == null ) {
+    				result.set(slave);
+    				return;
+    			}
+
+    			/* Hand the server over once its console says it is ready. */
+    			final long active = System.currentTimeMillis();
+    			console.restartClock();
+    			console.whenSettled().addListener(new Runnable() {
+    				public void run() {
+    					if( console.getOutcome() == ConsoleWatcher.Outcome.FAILED ) {
+    						parent.getMetrics().error(id, "console-failure");
+    						parent.getMetrics().bootFailed();
+    						retry(server, "failing", zone, tried, attempt, console, result);
+    						return;
+    					}
+    					if( console.getOutcome() == ConsoleWatcher.Outcome.READY )
+    						parent.getMetrics().record(id, ProvisioningMetrics.READY, System.currentTimeMillis() - active);
+    					result.set(slave);
+    				}
+    			}, MoreExecutors.sameThreadExecutor());
+    		}
+    	}, MoreExecutors.sameThreadExecutor());
+    }
+
+    /* Deletes a server that did not come up and boots another in a different zone. */
+    private void retry(Server server,
+    				   String status,
+    				   String zone,
+    				   final List<String> tried,
+    				   final int attempt,
+    				   ConsoleWatcher console,
+    				   final SettableFuture<OpenStackSlave> result) {
+    	if( console != null )
+    		console.stop();
+    	TerminationQueue.get(parent.id).enqueue(server.getId(), id);
+    	if( attempt >= MAX_BOOT_ATTEMPTS ) {
+    		result.setException(new IOException("Server " + server.getId() + " is " + status + " after " + attempt + " attempts"));
+    		return;
+    	}
+    	if( zone != null )
+    		tried.add(zone);
+    	LOGGER.info("Server " + server.getId() + " of " + id + " is " + status + ", booting another");
+
+    	/* The broken server still counts until its delete goes through. */
+    	parent.getAccounting().forceReserve(this);
+    	Computer.threadPoolForRemoting.submit(new Runnable() {
+    		public void run() {
+    			try {
+    				build(parent.boot(SlaveTemplate.this, parent.getZones().choose(SlaveTemplate.this, tried)),
+    					  tried, attempt + 1, result);
+    			} catch( RuntimeException e ) {
+    				result.setException(e);
+    			}
+    		}
+    	});
     }
     
     public OpenStackSlave attach(Server server) throws IOException, FormException, InterruptedException {
@@ -122,9 +393,90 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     	return slave;
     }
 
+    /*
+     * Starts a stopped server of this template again. A server that does
+     * not come back is deleted rather than returned to the pool.
+     */
+    public OpenStackSlave resume(String serverId) throws IOException, FormException, InterruptedException {
+    	return get(resumeAsync(serverId));
+    }
+
+    /* As resume(), without holding a thread while the server starts. */
+    public ListenableFuture<OpenStackSlave> resumeAsync(final String serverId) {
+    	final SettableFuture<OpenStackSlave> result = SettableFuture.create();
+    	final OpenStackSlave slave;
+    	try {
+    		parent.execute(ServerActions.start(serverId));
+    		Server server = parent.read("servers/" + serverId, ServersCore.showServer(serverId));
+    		parent.getServerStates().put(server);
+    		slave = new OpenStackSlave(this, parent, server);
+    	} catch( Exception e ) {
+    		resumed(serverId, false);
+    		result.setException(e);
+    		return result;
+    	}
+    	slave.watchActive().addListener(new Runnable() {
+    		public void run() {
+    			Server server = slave.getServer();
+    			boolean started = server != null && "ACTIVE".equals(server.getStatus());
+    			if( server != null )
+    				parent.getServerStates().put(server);
+    			resumed(serverId, started);
+    			if( started )
+    				result.set(slave);
+    			else
+    				result.setException(new IOException("Server " + serverId + " did not start"));
+    		}
+    	}, MoreExecutors.sameThreadExecutor());
+    	return result;
+    }
+
+    private void resumed(String serverId, boolean started) {
+    	if( started ) {
+    		getPool().resumed(serverId);
+    	} else {
+    		getPool().discard(serverId);
+    		TerminationQueue.get(parent.id).enqueue(serverId, id);
+    	}
+    }
+
+    private static OpenStackSlave get(ListenableFuture<OpenStackSlave> future)
+    		throws IOException, FormException, InterruptedException {
+    	try {
+    		return future.get();
+    	} catch( ExecutionException e ) {
+    		Throwable cause = e.getCause();
+    		if( cause instanceof IOException )
+    			throw (IOException) cause;
+    		if( cause instanceof FormException )
+    			throw (FormException) cause;
+    		if( cause instanceof RuntimeException )
+    			throw (RuntimeException) cause;
+    		throw new IOException(cause);
+    	}
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<SlaveTemplate> {
 
+    	public FormValidation doCheckConsoleReadyPattern(@QueryParameter String value) {
+    		return checkPattern(value);
+    	}
+
+    	public FormValidation doCheckConsoleFailurePattern(@QueryParameter String value) {
+    		return checkPattern(value);
+    	}
+
+    	private static FormValidation checkPattern(String value) {
+    		try {
+    			if( Util.fixEmptyAndTrim(value) != null )
+    				Pattern.compile(value.trim());
+    			return FormValidation.ok();
+    		} catch( PatternSyntaxException e ) {
+    			return FormValidation.error(e.getDescription());
+    		}
+    	}
+
     	public FormValidation doValidate(
                 @QueryParameter String authUrl,
                 @QueryParameter String authUsername,
@@ -137,9 +489,9 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 @QueryParameter String availabilityZone)
                 		throws IOException, ServletException {
     		
-    		NovaClient client = OpenStackCloud.connect(authUrl, authUsername, authPassword, authTenant, regionName);
-    		String flavorRef = OpenStackCloud.getFlavorRef(client, flavorId);
-    		String imageRef = OpenStackCloud.getImageRef(client, imageId);
+    		ResourceCache resources = OpenStackCloud.getResources(authUrl, authUsername, authPassword, authTenant, regionName);
+    		String flavorRef = resources.getFlavorRef(flavorId);
+    		String imageRef = resources.getImageRef(imageId);
     		
         	if( flavorRef == null )
         		return FormValidation.error(Messages.OpenStackCloud_InvalidFlavor());
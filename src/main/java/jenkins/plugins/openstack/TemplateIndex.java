@@ -0,0 +1,92 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Label;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Remembers which templates match each label, so that the provisioner's
+ * repeated questions about the same labels do not re-evaluate every label
+ * expression against every template. A cloud's templates never change once
+ * it is configured, so the index lives and dies with the cloud.
+ */
+public class TemplateIndex {
+
+	private final List<SlaveTemplate> templates;
+	private final ConcurrentMap<Label, List<SlaveTemplate>> matches = new ConcurrentHashMap<Label, List<SlaveTemplate>>();
+	private final List<SlaveTemplate> unlabeled;
+	private final Random random = new Random();
+
+	public TemplateIndex(List<SlaveTemplate> templates) {
+		this.templates = Collections.unmodifiableList(new ArrayList<SlaveTemplate>(templates));
+		this.unlabeled = match(null);
+	}
+
+	private List<SlaveTemplate> match(Label label) {
+		List<SlaveTemplate> r = new ArrayList<SlaveTemplate>();
+		for( SlaveTemplate t : templates )
+			if( t.matches(label) )
+				r.add(t);
+		return Collections.unmodifiableList(r);
+	}
+
+	/* All templates that can serve the label, in configuration order. */
+	public List<SlaveTemplate> get(Label label) {
+		if( label == null )
+			return unlabeled;
+		List<SlaveTemplate> r = matches.get(label);
+		if( r == null ) {
+			r = match(label);
+			List<SlaveTemplate> existing = matches.putIfAbsent(label, r);
+			if( existing != null )
+				r = existing;
+		}
+		return r;
+	}
+
+	/*
+	 * Picks one of the templates for the label. Templates with a standby
+	 * server ready win outright; otherwise the choice is random, weighted by
+	 * each template's weight among those still below their instance cap and
+	 * with room in the quota.
+	 */
+	public SlaveTemplate choose(Label label, InstanceAccounting accounting) {
+		List<SlaveTemplate> candidates = get(label);
+		if( candidates.size() <= 1 )
+			return candidates.isEmpty() ? null : candidates.get(0);
+
+		int total = 0;
+		SlaveTemplate fallback = null;
+		List<SlaveTemplate> available = new ArrayList<SlaveTemplate>();
+		for( SlaveTemplate t : candidates ) {
+			if( t.getPool().getReady() > 0 )
+				return t;
+			if( accounting.getTotal(t.id) >= t.getInstanceCap() || t.getParent().getQuota().getRoom(t) <= 0 )
+				continue;
+			if( t.getWeight() > 0 ) {
+				available.add(t);
+				total += t.getWeight();
+			} else if( fallback == null ) {
+				fallback = t;
+			}
+		}
+		if( available.isEmpty() )
+			return fallback != null ? fallback : candidates.get(0);
+
+		int pick;
+		synchronized( random ) {
+			pick = random.nextInt(total);
+		}
+		for( SlaveTemplate t : available ) {
+			pick -= t.getWeight();
+			if( pick < 0 )
+				return t;
+		}
+		return available.get(available.size() - 1);
+	}
+}
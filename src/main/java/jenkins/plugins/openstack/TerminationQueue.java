@@ -0,0 +1,222 @@
+package jenkins.plugins.openstack;
+
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.slaves.Cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.openstack.nova.api.ServersCore;
+
+/*
+ * Deletes servers in the background so that no Jenkins thread waits on
+ * Nova to get rid of a slave. Requests are written to disk until the
+ * delete succeeds, so a failed delete or a restart does not leak a server;
+ * failures are retried with exponential backoff and only a few deletes per
+ * cloud run at once.
+ */
+public class TerminationQueue {
+
+	private static final Logger LOGGER = Logger.getLogger(TerminationQueue.class.getName());
+
+	private static final int MAX_CONCURRENT = 4;
+	private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+	private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(10);
+
+	private static final ConcurrentMap<String, TerminationQueue> queues = new ConcurrentHashMap<String, TerminationQueue>();
+
+	public static final class Request {
+		public final String serverId;
+		public final String templateId;
+		public final long queued;
+		public int attempts;
+
+		Request(String serverId, String templateId) {
+			this.serverId = serverId;
+			this.templateId = templateId;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
+	private final String cloudId;
+	private final XmlFile file;
+
+	/* Guarded by this. */
+	private final List<Request> requests = new ArrayList<Request>();
+	private final LinkedList<Request> ready = new LinkedList<Request>();
+	private int running;
+
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private volatile long lastLatency;
+
+	private TerminationQueue(String cloudId) {
+		this.cloudId = cloudId;
+		this.file = new XmlFile(Hudson.XSTREAM,
+			new File(Hudson.getInstance().getRootDir(), "openstack-termination-" + Util.rawEncode(cloudId) + ".xml"));
+		load();
+	}
+
+	public static TerminationQueue get(String cloudId) {
+		TerminationQueue queue = queues.get(cloudId);
+		if( queue == null ) {
+			synchronized( queues ) {
+				queue = queues.get(cloudId);
+				if( queue == null ) {
+					queue = new TerminationQueue(cloudId);
+					queues.put(cloudId, queue);
+				}
+			}
+		}
+		return queue;
+	}
+
+	/* Resume deletes that were still pending when Jenkins went down. */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void resumeAll() {
+		for( Cloud cloud : Hudson.getInstance().clouds )
+			if( cloud instanceof OpenStackCloud )
+				get(((OpenStackCloud) cloud).id).dispatch();
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized void load() {
+		if( !file.exists() )
+			return;
+		try {
+			requests.addAll((List<Request>) file.read());
+			ready.addAll(requests);
+		} catch( IOException e ) {
+			LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+		}
+	}
+
+	private synchronized void save() {
+		try {
+			file.write(new ArrayList<Request>(requests));
+		} catch( IOException e ) {
+			LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+		}
+	}
+
+	public void enqueue(String serverId, String templateId) {
+		synchronized( this ) {
+			for( Request request : requests )
+				if( request.serverId.equals(serverId) )
+					return;
+			Request request = new Request(serverId, templateId);
+			requests.add(request);
+			ready.add(request);
+			save();
+		}
+		dispatch();
+	}
+
+	public synchronized boolean contains(String serverId) {
+		for( Request request : requests )
+			if( request.serverId.equals(serverId) )
+				return true;
+		return false;
+	}
+
+	/* Starts workers for ready requests, up to the concurrency limit. */
+	private synchronized void dispatch() {
+		while( running < MAX_CONCURRENT && !ready.isEmpty() ) {
+			final Request request = ready.removeFirst();
+			running++;
+			Computer.threadPoolForRemoting.submit(new Runnable() {
+				public void run() {
+					try {
+						delete(request);
+					} finally {
+						synchronized( TerminationQueue.this ) {
+							running--;
+						}
+						dispatch();
+					}
+				}
+			});
+		}
+	}
+
+	private void delete(final Request request) {
+		OpenStackCloud cloud = OpenStackCloud.get(cloudId);
+		try {
+			if( cloud == null )
+				throw new IllegalStateException("Cloud " + cloudId + " is not configured");
+			try {
+				cloud.execute(ServersCore.deleteServer(request.serverId));
+			} catch( WebApplicationException e ) {
+				/* Already gone is as good as deleted. */
+				if( e.getResponse() == null || e.getResponse().getStatus() != 404 )
+					throw e;
+			}
+		} catch( RuntimeException e ) {
+			if( cloud != null )
+				cloud.getMetrics().error(request.templateId, "delete");
+			long backoff;
+			synchronized( this ) {
+				request.attempts++;
+				save();
+				backoff = Math.min(INITIAL_BACKOFF << Math.min(request.attempts - 1, 16), MAX_BACKOFF);
+			}
+			LOGGER.log(Level.WARNING, "Failed to delete server " + request.serverId
+					+ " (attempt " + request.attempts + "), retrying in " + backoff + "ms", e);
+			OpenStackExecutors.timer().schedule(new Runnable() {
+				public void run() {
+					synchronized( TerminationQueue.this ) {
+						ready.add(request);
+					}
+					dispatch();
+				}
+			}, backoff, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		synchronized( this ) {
+			requests.remove(request);
+			save();
+		}
+		JnlpBootstrap.forget(request.serverId);
+		cloud.getAccounting().deleted(request.templateId);
+		long latency = System.currentTimeMillis() - request.queued;
+		cloud.getMetrics().record(request.templateId, ProvisioningMetrics.TERMINATE, latency);
+		lastLatency = latency;
+		totalLatency.addAndGet(latency);
+		deleted.incrementAndGet();
+	}
+
+	public synchronized int getDepth() {
+		return requests.size();
+	}
+
+	public long getDeleted() {
+		return deleted.get();
+	}
+
+	/* Time from enqueue to a successful delete, in milliseconds. */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	public long getAverageLatency() {
+		long count = deleted.get();
+		return count == 0 ? 0 : totalLatency.get() / count;
+	}
+}
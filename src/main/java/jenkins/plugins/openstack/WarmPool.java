@@ -0,0 +1,238 @@
+package jenkins.plugins.openstack;
+
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Queue.BuildableItem;
+import hudson.util.TimeUnit2;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstack.nova.model.Server;
+
+/*
+ * Standby servers for a template, booted ahead of demand so that provision()
+ * can hand out an ACTIVE server immediately, and servers of stop-on-terminate
+ * templates that were stopped rather than deleted, which can be started
+ * again instead of booting. Servers rebuilt by recycling templates join the
+ * standby servers while there is work for them. Pools are kept per cloud
+ * and template ID rather than on the template itself, so that saving the
+ * configuration does not lose track of servers already standing by.
+ */
+public class WarmPool {
+
+	private static final Logger LOGGER = Logger.getLogger(WarmPool.class.getName());
+
+	private static final ConcurrentMap<String, WarmPool> pools = new ConcurrentHashMap<String, WarmPool>();
+
+	private final String cloudId;
+	private final String templateId;
+
+	private final ConcurrentLinkedQueue<Server> ready = new ConcurrentLinkedQueue<Server>();
+	private final ConcurrentMap<String, Long> readySince = new ConcurrentHashMap<String, Long>();
+	private final AtomicInteger booting = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final Set<String> stopped = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> resuming = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong resumed = new AtomicLong();
+
+	private WarmPool(String cloudId, String templateId) {
+		this.cloudId = cloudId;
+		this.templateId = templateId;
+	}
+
+	public static WarmPool get(String cloudId, String templateId) {
+		String key = cloudId + "/" + templateId;
+		WarmPool pool = pools.get(key);
+		if( pool == null ) {
+			WarmPool fresh = new WarmPool(cloudId, templateId);
+			pool = pools.putIfAbsent(key, fresh);
+			if( pool == null )
+				pool = fresh;
+		}
+		return pool;
+	}
+
+	private SlaveTemplate getTemplate() {
+		OpenStackCloud cloud = OpenStackCloud.get(cloudId);
+		return cloud == null ? null : cloud.getTemplate(templateId);
+	}
+
+	/*
+	 * Takes a standby server, or returns null if none is ready. Either way
+	 * a pool with a standby target starts refilling in the background.
+	 */
+	public Server take() {
+		SlaveTemplate template = getTemplate();
+		if( template == null )
+			return null;
+		Server server = ready.poll();
+		if( server != null ) {
+			readySince.remove(server.getId());
+			hits.incrementAndGet();
+		} else if( template.getMinIdle() > 0 ) {
+			misses.incrementAndGet();
+		}
+		if( template.getMinIdle() > 0 )
+			refill();
+		return server;
+	}
+
+	private void makeReady(Server server) {
+		readySince.put(server.getId(), System.currentTimeMillis());
+		ready.add(server);
+	}
+
+	/*
+	 * Offers an ACTIVE server that was recycled from a terminated slave.
+	 * It is kept while the standby target or queued work calls for it, and
+	 * deleted otherwise.
+	 */
+	public void offer(Server server) {
+		SlaveTemplate template = getTemplate();
+		if( template != null && ready.size() < Math.max(template.getMinIdle(), getDemand(template)) ) {
+			makeReady(server);
+			return;
+		}
+		TerminationQueue.get(cloudId).enqueue(server.getId(), templateId);
+	}
+
+	/* Buildable items that could run on this template's slaves. */
+	private static int getDemand(SlaveTemplate template) {
+		int demand = 0;
+		for( BuildableItem item : Hudson.getInstance().getQueue().getBuildableItems() )
+			if( template.matches(item.getAssignedLabel()) )
+				demand++;
+		return demand;
+	}
+
+	/*
+	 * Deletes standby servers beyond the target that have been waiting
+	 * longer than the template's idle timeout, as an idle slave would be.
+	 */
+	public void trim() {
+		SlaveTemplate template = getTemplate();
+		long idle = TimeUnit2.MINUTES.toMillis(template != null ? template.getIdleMinutes() : 0);
+		int target = template != null ? template.getMinIdle() : 0;
+		long now = System.currentTimeMillis();
+		for( Server server : ready ) {
+			if( ready.size() <= target )
+				return;
+			Long since = readySince.get(server.getId());
+			if( since != null && now - since < idle )
+				continue;
+			if( ready.remove(server) ) {
+				readySince.remove(server.getId());
+				TerminationQueue.get(cloudId).enqueue(server.getId(), templateId);
+			}
+		}
+	}
+
+	/* Boots as many servers as needed to reach the target, within the caps. */
+	public void refill() {
+		final SlaveTemplate template = getTemplate();
+		if( template == null )
+			return;
+		final OpenStackCloud cloud = template.getParent();
+		while( ready.size() + booting.get() < template.getMinIdle() ) {
+			if( !cloud.getAccounting().reserve(template, cloud.getInstanceCap()) )
+				return;
+			booting.incrementAndGet();
+			Computer.threadPoolForRemoting.submit(new Runnable() {
+				public void run() {
+					try {
+						boot(cloud, template);
+					} catch( Exception e ) {
+						LOGGER.log(Level.WARNING, "Failed to boot standby server for " + templateId, e);
+					} finally {
+						booting.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	private void boot(OpenStackCloud cloud, SlaveTemplate template) throws Exception {
+		Server server = cloud.boot(template);
+		server = cloud.getPoller().watch(server.getId()).get();
+		if( "ACTIVE".equals(server.getStatus()) ) {
+			cloud.getZones().succeeded(server.getId());
+			makeReady(server);
+			return;
+		}
+		cloud.getZones().failed(server.getId());
+		TerminationQueue.get(cloudId).enqueue(server.getId(), template.id);
+	}
+
+	/* Records a stopped server that can be started again. */
+	public void stopped(String serverId) {
+		if( !resuming.contains(serverId) )
+			stopped.add(serverId);
+	}
+
+	/*
+	 * Takes a stopped server to start again, or returns null if there is
+	 * none. The caller must call resumed() once the server is a node again,
+	 * or discard() if it could not be started.
+	 */
+	public String takeStopped() {
+		Iterator<String> it = stopped.iterator();
+		while( it.hasNext() ) {
+			String serverId = it.next();
+			if( stopped.remove(serverId) ) {
+				resuming.add(serverId);
+				return serverId;
+			}
+		}
+		return null;
+	}
+
+	public void resumed(String serverId) {
+		resuming.remove(serverId);
+		resumed.incrementAndGet();
+	}
+
+	public void discard(String serverId) {
+		resuming.remove(serverId);
+		stopped.remove(serverId);
+	}
+
+	/* Whether the pool accounts for the server, as standby, stopped or resuming. */
+	public boolean contains(String serverId) {
+		return readySince.containsKey(serverId) || stopped.contains(serverId) || resuming.contains(serverId);
+	}
+
+	public int getReady() {
+		return ready.size();
+	}
+
+	public int getBooting() {
+		return booting.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int getStopped() {
+		return stopped.size();
+	}
+
+	public long getResumed() {
+		return resumed.get();
+	}
+}
@@ -0,0 +1,152 @@
+package jenkins.plugins.openstack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/*
+ * Picks the availability zone for each boot, taking turns among a
+ * template's zones. A zone whose servers end in ERROR or stay in BUILD is
+ * avoided for a while, for longer after each consecutive failure, and
+ * forgiven on its next success. There is one balancer per cloud id, so
+ * that penalties and the zones of servers in flight outlive a
+ * reconfiguration of the cloud.
+ */
+public class ZoneBalancer {
+
+	private static final Logger LOGGER = Logger.getLogger(ZoneBalancer.class.getName());
+
+	private static final long INITIAL_PENALTY = TimeUnit.MINUTES.toMillis(2);
+	private static final long MAX_PENALTY = TimeUnit.MINUTES.toMillis(30);
+
+	private static final class Health {
+		int failures;
+		long avoidUntil;
+	}
+
+	private static final ConcurrentMap<String, ZoneBalancer> balancers = new ConcurrentHashMap<String, ZoneBalancer>();
+
+	private final ConcurrentMap<String, Health> zones = new ConcurrentHashMap<String, Health>();
+	private final ConcurrentMap<String, AtomicInteger> turns = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/* The zone each server in flight was booted in. */
+	private final ConcurrentMap<String, String> placements = new ConcurrentHashMap<String, String>();
+
+	private ZoneBalancer() {
+	}
+
+	public static ZoneBalancer get(String cloudId) {
+		String key = String.valueOf(cloudId);
+		ZoneBalancer balancer = balancers.get(key);
+		if( balancer == null ) {
+			ZoneBalancer fresh = new ZoneBalancer();
+			balancer = balancers.putIfAbsent(key, fresh);
+			if( balancer == null )
+				balancer = fresh;
+		}
+		return balancer;
+	}
+
+	private Health health(String zone) {
+		Health h = zones.get(zone);
+		if( h == null ) {
+			Health fresh = new Health();
+			h = zones.putIfAbsent(zone, fresh);
+			if( h == null )
+				h = fresh;
+		}
+		return h;
+	}
+
+	/*
+	 * Chooses a zone for the template, preferring zones not yet tried for
+	 * this node. Returns null if the template leaves the zone to Nova.
+	 */
+	public String choose(SlaveTemplate template, Collection<String> tried) {
+		List<String> all = template.getAvailabilityZones();
+		if( all.isEmpty() )
+			return null;
+		List<String> candidates = new ArrayList<String>(all);
+		candidates.removeAll(tried);
+		if( candidates.isEmpty() )
+			candidates = all;
+
+		long now = System.currentTimeMillis();
+		List<String> healthy = new ArrayList<String>();
+		String soonest = null;
+		long soonestUntil = Long.MAX_VALUE;
+		for( String zone : candidates ) {
+			Health h = health(zone);
+			synchronized( h ) {
+				if( h.avoidUntil <= now )
+					healthy.add(zone);
+				else if( h.avoidUntil < soonestUntil ) {
+					soonest = zone;
+					soonestUntil = h.avoidUntil;
+				}
+			}
+		}
+		if( healthy.isEmpty() )
+			return soonest;
+		return healthy.get((turn(template.id) & Integer.MAX_VALUE) % healthy.size());
+	}
+
+	private int turn(String templateId) {
+		AtomicInteger counter = turns.get(templateId);
+		if( counter == null ) {
+			AtomicInteger fresh = new AtomicInteger();
+			counter = turns.putIfAbsent(templateId, fresh);
+			if( counter == null )
+				counter = fresh;
+		}
+		return counter.getAndIncrement();
+	}
+
+	public void placed(String serverId, String zone) {
+		if( zone != null )
+			placements.put(serverId, zone);
+	}
+
+	/* The zone the server was booted in, or null if unknown. */
+	public String getPlacement(String serverId) {
+		return placements.get(serverId);
+	}
+
+	/* Returns the zone the server was booted in, if known. */
+	public String succeeded(String serverId) {
+		String zone = placements.remove(serverId);
+		if( zone != null ) {
+			Health h = health(zone);
+			synchronized( h ) {
+				h.failures = 0;
+				h.avoidUntil = 0;
+			}
+		}
+		return zone;
+	}
+
+	/* Returns the zone the server was booted in, if known. */
+	public String failed(String serverId) {
+		String zone = placements.remove(serverId);
+		if( zone != null ) {
+			Health h = health(zone);
+			long penalty;
+			synchronized( h ) {
+				h.failures++;
+				penalty = Math.min(INITIAL_PENALTY << Math.min(h.failures - 1, 16), MAX_PENALTY);
+				h.avoidUntil = System.currentTimeMillis() + penalty;
+			}
+			LOGGER.info("Avoiding availability zone " + zone + " for " + penalty + "ms after a failed boot");
+		}
+		return zone;
+	}
+
+	public void forget(String serverId) {
+		placements.remove(serverId);
+	}
+}